@@ -0,0 +1,115 @@
+package com.example.photogallery;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用 FakeNasaServer 验证 BulkDownloader 的断点续传、并行下载和带宽上限
+ */
+@RunWith(AndroidJUnit4.class)
+public class BulkDownloaderTest {
+    private static final int PHOTO_COUNT = 30;
+    private static final int SOL = 1000; // FakeNasaServer 的图片都属于这个 sol
+
+    private Context mContext;
+    private FakeNasaServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        deleteRecursively(getDirectory());
+        FetchPlanner.clearCache(mContext);
+
+        mServer = new FakeNasaServer();
+        mServer.setPhotoCount(PHOTO_COUNT);
+        mServer.setImageSize(512, 512);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        deleteRecursively(getDirectory());
+    }
+
+    @Test
+    public void resumesDroppedTransfers() {
+        // 一半的响应在 90% 处断开，每个文件最多尝试 5 次，第一轮可能有文件没完成
+        mServer.setDropRate(0.5, 0.9);
+        newDownloader(4, 0).run();
+
+        // 模拟进程重启后再次运行，只下载剩下的部分
+        mServer.setDropRate(0, 0);
+        BulkDownloader downloader = newDownloader(4, 0);
+        List<File> files = downloader.run();
+
+        assertEquals(PHOTO_COUNT, files.size());
+        long totalLength = 0;
+        for (File file : files) {
+            assertTrue(file.exists());
+            assertTrue(!new File(file.getPath() + ".part").exists());
+            totalLength += file.length();
+        }
+        // 断开的传输从断点继续，服务器发出的每个字节都只发一次
+        assertEquals(totalLength, mServer.getImageBytesServed());
+    }
+
+    @Test
+    public void completedFilesAreNotDownloadedAgain() {
+        newDownloader(4, 0).run();
+        long bytesServed = mServer.getImageBytesServed();
+
+        BulkDownloader downloader = newDownloader(4, 0);
+        assertEquals(PHOTO_COUNT, downloader.run().size());
+        assertEquals(bytesServed, mServer.getImageBytesServed());
+        assertEquals(0, downloader.getBytesDownloaded());
+    }
+
+    @Test
+    public void respectsBandwidthCap() {
+        long maxBytesPerSecond = 256 * 1024;
+        long start = SystemClock.elapsedRealtime();
+        BulkDownloader downloader = newDownloader(4, maxBytesPerSecond);
+        assertEquals(PHOTO_COUNT, downloader.run().size());
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        // 限速器允许 0.5 秒的突发
+        long minElapsed = downloader.getBytesDownloaded() * 1000 / maxBytesPerSecond - 500;
+        assertTrue("Finished in " + elapsed + "ms, expected at least " + minElapsed + "ms",
+                elapsed >= minElapsed);
+    }
+
+    private BulkDownloader newDownloader(int parallelism, long maxBytesPerSecond) {
+        return new BulkDownloader(mContext, new NasaFetcher(mServer.getApiBaseUrl()),
+                NasaFetcher.DEFAULT_ROVER, SOL, parallelism, maxBytesPerSecond);
+    }
+
+    private File getDirectory() {
+        return BulkDownloader.getDirectory(mContext, NasaFetcher.DEFAULT_ROVER, SOL);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,464 @@
+package com.example.photogallery;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地模拟 NASA Mars Rover Photos API 的 HTTP 服务器
+ * 提供 photos JSON、任务清单和合成的 JPG，可以配置延迟、带宽、错误率、限流和传输中断开连接
+ * 图片支持 Range 和 If-Range 请求，ETag 由图片内容决定
+ */
+public class FakeNasaServer {
+    private static final String TAG = "FakeNasaServer";
+    private static final String API_PATH = "/mars-photos/api/v1";
+    private static final String PHOTOS_PATH = API_PATH + "/rovers/curiosity/photos";
+    private static final String MANIFEST_PATH = API_PATH + "/manifests/curiosity";
+    private static final String IMAGES_PATH = "/images/";
+    private static final int IMAGE_VARIANT_COUNT = 8; // 合成图片的种类数
+    private static final int CHUNK_SIZE = 4096;
+    private static final int PAGE_SIZE = 25; // 和真实 API 一致
+    private static final int SOL = 1000; // 合成的图片都属于这个 sol
+
+    private int mPhotoCount = 1000;
+    private String mRecordedPhotosJson; // 录制的 photos JSON，为 null 时自动生成
+    private int mImageWidth = 1024;
+    private int mImageHeight = 1024;
+    private long mLatencyMs = 0;
+    private long mBandwidthBytesPerSecond = 0; // 0 表示不限速
+    private double mErrorRate = 0;
+    private int mRateLimit = 0; // 每个服务器生命周期内允许的请求数，0 表示不限流
+    private double mDropRate = 0; // 图片响应在传输中断开连接的概率
+    private double mDropFraction = 0.9; // 断开前写出的响应体比例
+
+    private final Random mRandom = new Random(42);
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mPhotosRequestCount = new AtomicInteger();
+    private final AtomicInteger mManifestRequestCount = new AtomicInteger();
+    private final AtomicInteger mImageResponseCount = new AtomicInteger();
+    private final AtomicLong mImageBytesServed = new AtomicLong();
+    private byte[][] mImageVariants;
+    private JSONArray mAllPhotos;
+    private ServerSocket mServerSocket;
+    private ExecutorService mConnectionExecutor;
+
+    public void setPhotoCount(int photoCount) {
+        mPhotoCount = photoCount;
+    }
+
+    public void setRecordedPhotosJson(String recordedPhotosJson) {
+        mRecordedPhotosJson = recordedPhotosJson;
+    }
+
+    public void setImageSize(int width, int height) {
+        mImageWidth = width;
+        mImageHeight = height;
+    }
+
+    public void setLatencyMs(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        mBandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    public void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    public void setRateLimit(int rateLimit) {
+        mRateLimit = rateLimit;
+    }
+
+    /**
+     * @param dropRate     图片响应在传输中断开连接的概率
+     * @param dropFraction 断开前写出的响应体比例
+     */
+    public void setDropRate(double dropRate, double dropFraction) {
+        mDropRate = dropRate;
+        mDropFraction = dropFraction;
+    }
+
+    /**
+     * 在本机的随机端口上启动服务器
+     */
+    public void start() throws IOException {
+        mImageVariants = new byte[IMAGE_VARIANT_COUNT][];
+        for (int i = 0; i < IMAGE_VARIANT_COUNT; i++) {
+            mImageVariants[i] = createJpeg(i);
+        }
+
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mConnectionExecutor = Executors.newCachedThreadPool();
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, TAG);
+        acceptThread.start();
+        Log.i(TAG, "Listening on " + getBaseUrl());
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        mConnectionExecutor.shutdownNow();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    public String getApiBaseUrl() {
+        return getBaseUrl() + API_PATH;
+    }
+
+    public int getPhotosRequestCount() {
+        return mPhotosRequestCount.get();
+    }
+
+    public int getManifestRequestCount() {
+        return mManifestRequestCount.get();
+    }
+
+    public int getImageResponseCount() {
+        return mImageResponseCount.get();
+    }
+
+    public long getImageBytesServed() {
+        return mImageBytesServed.get();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!mServerSocket.isClosed()) {
+                    Log.e(TAG, "Failed to accept connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 每个连接只处理一个请求，响应后关闭
+     */
+    private void handleConnection(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            // 请求头的名字统一为小写
+            Map<String, String> headers = new HashMap<>();
+            String header;
+            while ((header = reader.readLine()) != null && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon > 0) {
+                    headers.put(header.substring(0, colon).trim().toLowerCase(Locale.US),
+                            header.substring(colon + 1).trim());
+                }
+            }
+
+            respond(socket.getOutputStream(), Uri.parse(requestLine.split(" ")[1]), headers);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Failed to handle connection", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void respond(OutputStream out, Uri uri, Map<String, String> headers) throws IOException, JSONException {
+        String path = uri.getPath();
+        int requestNumber = mRequestCount.incrementAndGet();
+        sleep(mLatencyMs);
+
+        if (mRateLimit > 0 && requestNumber > mRateLimit) {
+            writeResponse(out, 429, "Too Many Requests", "text/plain", "Rate limit exceeded".getBytes(), 0);
+            return;
+        }
+        boolean fail;
+        synchronized (mRandom) {
+            fail = mRandom.nextDouble() < mErrorRate;
+        }
+        if (fail) {
+            writeResponse(out, 500, "Internal Server Error", "text/plain", "Injected error".getBytes(),
+                    remaining(requestNumber));
+            return;
+        }
+
+        if (path.equals(PHOTOS_PATH)) {
+            mPhotosRequestCount.incrementAndGet();
+            writeResponse(out, 200, "OK", "application/json", getPhotosJson(uri).getBytes("UTF-8"),
+                    remaining(requestNumber));
+        } else if (path.equals(MANIFEST_PATH)) {
+            mManifestRequestCount.incrementAndGet();
+            writeResponse(out, 200, "OK", "application/json", getManifestJson().getBytes("UTF-8"),
+                    remaining(requestNumber));
+        } else if (path.startsWith(IMAGES_PATH)) {
+            int id = Integer.parseInt(path.substring(IMAGES_PATH.length(), path.lastIndexOf('.')));
+            int variant = id % IMAGE_VARIANT_COUNT;
+            writeImage(out, mImageVariants[variant], "\"variant-" + variant + "\"", headers, remaining(requestNumber));
+            mImageResponseCount.incrementAndGet();
+        } else {
+            writeResponse(out, 404, "Not Found", "text/plain", path.getBytes(), remaining(requestNumber));
+        }
+    }
+
+    private int remaining(int requestNumber) {
+        return mRateLimit > 0 ? Math.max(0, mRateLimit - requestNumber) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * 写出图片，带 Range 请求头且 If-Range 和 ETag 一致时只返回请求的部分
+     * 按配置的概率只写出一部分响应体就断开连接
+     */
+    private void writeImage(OutputStream out, byte[] image, String etag, Map<String, String> requestHeaders,
+                            int rateLimitRemaining) throws IOException {
+        int start = 0;
+        String range = requestHeaders.get("range");
+        String ifRange = requestHeaders.get("if-range");
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-")
+                && (ifRange == null || ifRange.equals(etag))) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        }
+        if (start >= image.length) {
+            writeResponse(out, 416, "Range Not Satisfiable", "text/plain", new byte[0],
+                    "Content-Range: bytes */" + image.length + "\r\n", rateLimitRemaining);
+            return;
+        }
+
+        int length = image.length - start;
+        boolean drop;
+        synchronized (mRandom) {
+            drop = mRandom.nextDouble() < mDropRate;
+        }
+        String headers = "ETag: " + etag + "\r\nAccept-Ranges: bytes\r\n";
+        if (start > 0) {
+            headers += "Content-Range: bytes " + start + "-" + (image.length - 1) + "/" + image.length + "\r\n";
+        }
+        writeHeaders(out, start > 0 ? 206 : 200, start > 0 ? "Partial Content" : "OK", "image/jpeg",
+                length, headers, rateLimitRemaining);
+        int bytesToWrite = drop ? (int) (length * mDropFraction) : length;
+        writeBody(out, image, start, bytesToWrite);
+        mImageBytesServed.addAndGet(bytesToWrite);
+        // 断开时调用者会关闭 socket，客户端读到的响应体比 Content-Length 短
+    }
+
+    private void writeResponse(OutputStream out, int code, String message, String contentType,
+                               byte[] body, int rateLimitRemaining) throws IOException {
+        writeResponse(out, code, message, contentType, body, "", rateLimitRemaining);
+    }
+
+    private void writeResponse(OutputStream out, int code, String message, String contentType,
+                               byte[] body, String extraHeaders, int rateLimitRemaining) throws IOException {
+        writeHeaders(out, code, message, contentType, body.length, extraHeaders, rateLimitRemaining);
+        writeBody(out, body, 0, body.length);
+    }
+
+    private void writeHeaders(OutputStream out, int code, String message, String contentType, int contentLength,
+                              String extraHeaders, int rateLimitRemaining) throws IOException {
+        StringBuilder headers = new StringBuilder()
+                .append("HTTP/1.1 ").append(code).append(' ').append(message).append("\r\n")
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Content-Length: ").append(contentLength).append("\r\n")
+                .append("Connection: close\r\n")
+                .append(extraHeaders);
+        if (mRateLimit > 0) {
+            headers.append("X-RateLimit-Limit: ").append(mRateLimit).append("\r\n")
+                    .append("X-RateLimit-Remaining: ").append(rateLimitRemaining).append("\r\n");
+        }
+        headers.append("\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+    }
+
+    /**
+     * 按配置的带宽分块写出响应体
+     */
+    private void writeBody(OutputStream out, byte[] body, int start, int length) throws IOException {
+        int end = start + length;
+        for (int offset = start; offset < end; offset += CHUNK_SIZE) {
+            int chunkLength = Math.min(CHUNK_SIZE, end - offset);
+            out.write(body, offset, chunkLength);
+            if (mBandwidthBytesPerSecond > 0) {
+                sleep(chunkLength * 1000L / mBandwidthBytesPerSecond);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * 和真实 API 一样按 sol 过滤，带 page 参数时每页返回 25 张
+     */
+    private String getPhotosJson(Uri uri) throws JSONException {
+        String sol = uri.getQueryParameter("sol");
+        String page = uri.getQueryParameter("page");
+        JSONArray allPhotos = getAllPhotos();
+
+        JSONArray photos = new JSONArray();
+        for (int i = 0; i < allPhotos.length(); i++) {
+            JSONObject photo = allPhotos.getJSONObject(i);
+            if (sol == null || photo.getInt("sol") == Integer.parseInt(sol)) {
+                photos.put(photo);
+            }
+        }
+        if (page != null) {
+            int first = (Integer.parseInt(page) - 1) * PAGE_SIZE;
+            JSONArray pagePhotos = new JSONArray();
+            for (int i = first; i < Math.min(first + PAGE_SIZE, photos.length()); i++) {
+                pagePhotos.put(photos.get(i));
+            }
+            photos = pagePhotos;
+        }
+        return new JSONObject().put("photos", photos).toString();
+    }
+
+    /**
+     * 由全部图片统计出和真实 API 结构相同的任务清单
+     */
+    private String getManifestJson() throws JSONException {
+        JSONArray allPhotos = getAllPhotos();
+        TreeMap<Integer, Integer> counts = new TreeMap<>();
+        Map<Integer, Set<String>> cameras = new HashMap<>();
+        Map<Integer, String> earthDates = new HashMap<>();
+        for (int i = 0; i < allPhotos.length(); i++) {
+            JSONObject photo = allPhotos.getJSONObject(i);
+            int sol = photo.getInt("sol");
+            Integer count = counts.get(sol);
+            counts.put(sol, count == null ? 1 : count + 1);
+            if (!cameras.containsKey(sol)) {
+                cameras.put(sol, new LinkedHashSet<String>());
+                earthDates.put(sol, photo.getString("earth_date"));
+            }
+            cameras.get(sol).add(photo.getJSONObject("camera").getString("name"));
+        }
+
+        JSONArray sols = new JSONArray();
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+            sols.put(new JSONObject()
+                    .put("sol", entry.getKey())
+                    .put("earth_date", earthDates.get(entry.getKey()))
+                    .put("total_photos", entry.getValue())
+                    .put("cameras", new JSONArray(cameras.get(entry.getKey()))));
+        }
+
+        JSONObject manifest = new JSONObject()
+                .put("name", "Curiosity")
+                .put("landing_date", "2012-08-06")
+                .put("launch_date", "2011-11-26")
+                .put("status", "active")
+                .put("max_sol", counts.isEmpty() ? 0 : counts.lastKey())
+                .put("total_photos", allPhotos.length())
+                .put("photos", sols);
+        return new JSONObject().put("photo_manifest", manifest).toString();
+    }
+
+    /**
+     * 生成和真实 API 结构相同的 photos 数组，img_src 指向本服务器
+     */
+    private synchronized JSONArray getAllPhotos() throws JSONException {
+        if (mAllPhotos != null) {
+            return mAllPhotos;
+        }
+        if (mRecordedPhotosJson != null) {
+            mAllPhotos = new JSONObject(mRecordedPhotosJson).getJSONArray("photos");
+            return mAllPhotos;
+        }
+
+        JSONArray photos = new JSONArray();
+        for (int i = 0; i < mPhotoCount; i++) {
+            int id = 100000 + i;
+            JSONObject camera = new JSONObject()
+                    .put("id", 20)
+                    .put("name", "FHAZ")
+                    .put("rover_id", 5)
+                    .put("full_name", "Front Hazard Avoidance Camera");
+            JSONObject rover = new JSONObject()
+                    .put("id", 5)
+                    .put("name", "Curiosity")
+                    .put("landing_date", "2012-08-06")
+                    .put("launch_date", "2011-11-26")
+                    .put("status", "active");
+            photos.put(new JSONObject()
+                    .put("id", id)
+                    .put("sol", SOL)
+                    .put("camera", camera)
+                    .put("img_src", getBaseUrl() + IMAGES_PATH + id + ".JPG")
+                    .put("earth_date", "2015-05-30")
+                    .put("rover", rover));
+        }
+        mAllPhotos = photos;
+        return mAllPhotos;
+    }
+
+    /**
+     * 合成一张带噪点的 JPG，噪点让压缩后的大小接近真实照片
+     */
+    private byte[] createJpeg(int variant) {
+        Bitmap bitmap = Bitmap.createBitmap(mImageWidth, mImageHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.rgb(180 + variant * 8, 90, 60));
+        Paint paint = new Paint();
+        Random random = new Random(variant);
+        for (int i = 0; i < 2000; i++) {
+            paint.setColor(Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            canvas.drawCircle(random.nextInt(mImageWidth), random.nextInt(mImageHeight),
+                    random.nextInt(16) + 1, paint);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.photogallery;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 用 FakeNasaServer 验证任务清单的缓存，以及 GallerySync 按清单只请求存在的页
+ */
+@RunWith(AndroidJUnit4.class)
+public class FetchPlannerTest {
+    private static final int PHOTO_COUNT = 60; // 3 页，最后一页不满
+    private static final int SOL = 1000; // FakeNasaServer 的图片都属于这个 sol
+
+    private Context mContext;
+    private FakeNasaServer mServer;
+    private NasaFetcher mNasaFetcher;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mServer = new FakeNasaServer();
+        mServer.setPhotoCount(PHOTO_COUNT);
+        mServer.start();
+        mNasaFetcher = new NasaFetcher(mServer.getApiBaseUrl());
+        clearState();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        clearState();
+    }
+
+    @Test
+    public void manifestIsFetchedOnce() {
+        MissionManifest manifest = new FetchPlanner(mContext, mNasaFetcher, NasaFetcher.DEFAULT_ROVER).getManifest();
+        assertNotNull(manifest);
+        assertEquals(SOL, manifest.getMaxSol());
+        assertEquals(PHOTO_COUNT, manifest.getPhotoCount(SOL));
+        assertEquals(3, manifest.getPageCount(SOL));
+        assertEquals(0, manifest.getPhotoCount(SOL - 1));
+        assertEquals(SOL, manifest.getNextSolWithPhotos(0));
+        assertEquals(-1, manifest.getNextSolWithPhotos(SOL + 1));
+
+        // 另一个对象也使用缓存的清单
+        new FetchPlanner(mContext, mNasaFetcher, NasaFetcher.DEFAULT_ROVER).getManifest();
+        assertEquals(1, mServer.getManifestRequestCount());
+    }
+
+    @Test
+    public void syncRequestsOnlyExistingPages() {
+        GallerySync gallerySync = new GallerySync(mContext, mNasaFetcher, NasaFetcher.DEFAULT_ROVER);
+        assertEquals(PHOTO_COUNT, gallerySync.sync().size());
+        // 没有清单时还要试探后面的 3 个空 sol
+        assertEquals(3, mServer.getPhotosRequestCount());
+
+        // 已经追上探测车，不再发出任何请求
+        assertEquals(0, gallerySync.sync().size());
+        assertEquals(3, mServer.getPhotosRequestCount());
+    }
+
+    /**
+     * 删除缓存的清单和同步状态，让每个测试都从零开始
+     */
+    private void clearState() {
+        FetchPlanner.clearCache(mContext);
+        new File(mContext.getFilesDir(), "gallery_" + NasaFetcher.DEFAULT_ROVER + ".jsonl").delete();
+        mContext.getSharedPreferences("gallery_sync", Context.MODE_PRIVATE).edit().clear().commit();
+    }
+}
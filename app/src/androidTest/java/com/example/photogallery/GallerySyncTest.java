@@ -0,0 +1,110 @@
+package com.example.photogallery;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 用 FakeNasaServer 验证 GallerySync 在同步中途失败后不会重复保存图片，以及每收到一页就交出结果
+ */
+@RunWith(AndroidJUnit4.class)
+public class GallerySyncTest {
+    private static final int PHOTO_COUNT = 60; // 3 页，最后一页不满
+
+    private Context mContext;
+    private FakeNasaServer mServer;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        clearState();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        clearState();
+    }
+
+    @Test
+    public void failureMidSolDoesNotDuplicatePhotos() throws IOException {
+        // 清单和前两页成功，第三页被限流
+        startServer(3);
+        assertEquals(2 * NasaFetcher.PAGE_SIZE, newGallerySync().sync().size());
+        mServer.shutdown();
+
+        // 服务器恢复后只请求剩下的一页
+        startServer(0);
+        GallerySync gallerySync = newGallerySync();
+        assertEquals(PHOTO_COUNT - 2 * NasaFetcher.PAGE_SIZE, gallerySync.sync().size());
+        assertEquals(1, mServer.getPhotosRequestCount());
+
+        List<GalleryItem> galleryItemList = gallerySync.loadLocal();
+        Set<Integer> ids = new HashSet<>();
+        for (GalleryItem galleryItem : galleryItemList) {
+            ids.add(galleryItem.getId());
+        }
+        assertEquals(PHOTO_COUNT, galleryItemList.size());
+        assertEquals(PHOTO_COUNT, ids.size());
+    }
+
+    @Test
+    public void plansThenPublishesEachPageAsItLands() throws IOException {
+        startServer(0);
+        final List<Integer> plannedCounts = new ArrayList<>();
+        final List<Integer> pageSizes = new ArrayList<>();
+        newGallerySync().sync(false, new GallerySync.Listener() {
+            @Override
+            public void onSyncPlanned(int photoCount) {
+                plannedCounts.add(photoCount);
+            }
+
+            @Override
+            public void onPhotosSynced(List<GalleryItem> galleryItemList) {
+                pageSizes.add(galleryItemList.size());
+            }
+        });
+        // 请求之前就从清单得知一共有多少张
+        assertEquals(Arrays.asList(PHOTO_COUNT), plannedCounts);
+        assertEquals(Arrays.asList(NasaFetcher.PAGE_SIZE, NasaFetcher.PAGE_SIZE,
+                PHOTO_COUNT - 2 * NasaFetcher.PAGE_SIZE), pageSizes);
+    }
+
+    private void startServer(int rateLimit) throws IOException {
+        mServer = new FakeNasaServer();
+        mServer.setPhotoCount(PHOTO_COUNT);
+        mServer.setRateLimit(rateLimit);
+        mServer.start();
+    }
+
+    private GallerySync newGallerySync() {
+        return new GallerySync(mContext, new NasaFetcher(mServer.getApiBaseUrl()), NasaFetcher.DEFAULT_ROVER);
+    }
+
+    /**
+     * 删除缓存的清单和同步状态，让每个测试都从零开始
+     */
+    private void clearState() {
+        FetchPlanner.clearCache(mContext);
+        new File(mContext.getFilesDir(), "gallery_" + NasaFetcher.DEFAULT_ROVER + ".jsonl").delete();
+        mContext.getSharedPreferences("gallery_sync", Context.MODE_PRIVATE).edit().clear().commit();
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.photogallery;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 端到端压力测试：用 FakeNasaServer 代替 NASA API，驱动 NasaFetcher 和 ThumbnailDownloader
+ * 按脚本滚动几千个格子，并报告首图时间、每秒图片数、每张图片的字节数、缓存命中率和峰值内存
+ * <p>
+ * 参数通过 instrumentation 传入，例如：
+ * adb shell am instrument -w -e class com.example.photogallery.ScrollLoadHarness \
+ * -e photoCount 3000 -e latencyMs 150 -e bandwidth 200000 -e errorRate 0.02 ...
+ * 把录制的 photos JSON 放在 androidTest 的 assets/photos.json 即可代替合成数据
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScrollLoadHarness {
+    private static final String TAG = "ScrollLoadHarness";
+    private static final int COLUMN_COUNT = 3; // 和 PhotoGalleryFragment 的 GridLayoutManager 一致
+    private static final int VISIBLE_ROW_COUNT = 6;
+    private static final int RECYCLED_ROW_COUNT = 2; // RecyclerView 额外持有的行数
+    private static final long SETTLE_MS = 3000; // 滚动结束后等待剩余请求完成的时间
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    private Bundle mArguments;
+    private FakeNasaServer mServer;
+    private ThumbnailDownloader<Integer> mThumbnailDownloader;
+    private volatile boolean mSampling;
+    private final AtomicLong mPeakJavaHeap = new AtomicLong();
+    private final AtomicLong mPeakNativeHeap = new AtomicLong();
+
+    @Before
+    public void setUp() throws IOException {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = mInstrumentation.getTargetContext();
+        mArguments = InstrumentationRegistry.getArguments();
+        clearDiskCache();
+
+        mServer = new FakeNasaServer();
+        mServer.setPhotoCount(intArgument("photoCount", 2000));
+        mServer.setImageSize(intArgument("imageWidth", 1024), intArgument("imageHeight", 1024));
+        mServer.setLatencyMs(intArgument("latencyMs", 100));
+        mServer.setBandwidthBytesPerSecond(intArgument("bandwidth", 0));
+        mServer.setErrorRate(Double.parseDouble(mArguments.getString("errorRate", "0")));
+        mServer.setRateLimit(intArgument("rateLimit", 0));
+        String recordedJson = readRecordedPhotos();
+        if (recordedJson != null) {
+            mServer.setRecordedPhotosJson(recordedJson);
+        }
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSampling = false;
+        if (mThumbnailDownloader != null) {
+            mThumbnailDownloader.quit();
+        }
+        mServer.shutdown();
+        clearDiskCache();
+    }
+
+    @Test
+    public void scriptedScroll() throws InterruptedException {
+        int itemsPerSecond = intArgument("itemsPerSecond", 60);
+        startHeapSampler();
+
+        final long startTime = SystemClock.elapsedRealtime();
+        List<GalleryItem> galleryItemList = new NasaFetcher(mServer.getApiBaseUrl()).fetchGalleryItems();
+        long fetchTime = SystemClock.elapsedRealtime() - startTime;
+        assertFalse("No gallery items fetched", galleryItemList.isEmpty());
+
+        final AtomicInteger deliveredCount = new AtomicInteger();
+        final AtomicInteger failedCount = new AtomicInteger();
+        final AtomicLong firstImageTime = new AtomicLong(-1);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mThumbnailDownloader = new ThumbnailDownloader<>(new Handler(), mContext);
+                mThumbnailDownloader.setFrameBatchedDelivery(true);
+                mThumbnailDownloader.setThumbnailDownloadListener(
+                        new ThumbnailDownloader.ThumbnailDownloadListener<Integer>() {
+                            @Override
+                            public void onThumbnailDownloaded(Integer target, Bitmap thumbnail) {
+                                if (thumbnail == null) {
+                                    failedCount.incrementAndGet();
+                                    return;
+                                }
+                                deliveredCount.incrementAndGet();
+                                firstImageTime.compareAndSet(-1, SystemClock.elapsedRealtime() - startTime);
+                            }
+                        });
+            }
+        });
+        mThumbnailDownloader.start();
+        mThumbnailDownloader.getLooper();
+
+        // 向下滚到底，再以两倍速度滚回顶部
+        long scrollStart = SystemClock.elapsedRealtime();
+        int lastFirstRow = (galleryItemList.size() - 1) / COLUMN_COUNT;
+        long rowInterval = 1000L * COLUMN_COUNT / itemsPerSecond;
+        for (int row = 0; row <= lastFirstRow; row++) {
+            bindRows(galleryItemList, row);
+            Thread.sleep(rowInterval);
+        }
+        for (int row = lastFirstRow; row >= 0; row--) {
+            bindRows(galleryItemList, row);
+            Thread.sleep(rowInterval / 2);
+        }
+        Thread.sleep(SETTLE_MS);
+        long scrollTime = SystemClock.elapsedRealtime() - scrollStart;
+
+        report(galleryItemList.size(), fetchTime, firstImageTime.get(), scrollTime,
+                deliveredCount.get(), failedCount.get());
+        assertTrue("No thumbnail delivered", deliveredCount.get() > 0);
+    }
+
+    /**
+     * 模拟 RecyclerView 把复用的格子绑定到从 firstRow 开始的可见行上
+     */
+    private void bindRows(final List<GalleryItem> galleryItemList, final int firstRow) {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                int cellCount = (VISIBLE_ROW_COUNT + RECYCLED_ROW_COUNT) * COLUMN_COUNT;
+                int first = firstRow * COLUMN_COUNT;
+                int last = Math.min(first + VISIBLE_ROW_COUNT * COLUMN_COUNT, galleryItemList.size());
+                for (int position = first; position < last; position++) {
+                    mThumbnailDownloader.queueThumbnail(position % cellCount,
+                            galleryItemList.get(position).getImageSource());
+                }
+            }
+        });
+    }
+
+    private void report(int itemCount, long fetchTime, long firstImageTime, long scrollTime,
+                        int deliveredCount, int failedCount) {
+        int memoryHits = mThumbnailDownloader.getMemoryHitCount();
+        int diskHits = mThumbnailDownloader.getDiskHitCount();
+        int networkFetches = mThumbnailDownloader.getNetworkFetchCount();
+        int lookups = memoryHits + diskHits + networkFetches;
+
+        Bundle results = new Bundle();
+        results.putInt("items", itemCount);
+        results.putLong("fetchGalleryItemsMs", fetchTime);
+        results.putLong("timeToFirstImageMs", firstImageTime);
+        results.putDouble("imagesPerSecond", deliveredCount * 1000.0 / scrollTime);
+        results.putInt("imagesDelivered", deliveredCount);
+        results.putInt("imagesFailed", failedCount);
+        results.putLong("bytesPerImage", networkFetches == 0 ? 0 : mThumbnailDownloader.getNetworkBytes() / networkFetches);
+        results.putLong("serverImageBytes", mServer.getImageBytesServed());
+        results.putInt("serverImageResponses", mServer.getImageResponseCount());
+        results.putDouble("memoryHitRatio", lookups == 0 ? 0 : (double) memoryHits / lookups);
+        results.putDouble("diskHitRatio", lookups == 0 ? 0 : (double) diskHits / lookups);
+        results.putLong("peakJavaHeapBytes", mPeakJavaHeap.get());
+        results.putLong("peakNativeHeapBytes", mPeakNativeHeap.get());
+
+        for (String key : results.keySet()) {
+            Log.i(TAG, key + " = " + results.get(key));
+        }
+        mInstrumentation.sendStatus(0, results);
+    }
+
+    /**
+     * 每 50ms 采样一次 Java 堆和 Native 堆（API 26 起 Bitmap 像素在 Native 堆上）
+     */
+    private void startHeapSampler() {
+        mSampling = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Runtime runtime = Runtime.getRuntime();
+                while (mSampling) {
+                    updatePeak(mPeakJavaHeap, runtime.totalMemory() - runtime.freeMemory());
+                    updatePeak(mPeakNativeHeap, Debug.getNativeHeapAllocatedSize());
+                    SystemClock.sleep(50);
+                }
+            }
+        }, TAG + "-heap").start();
+    }
+
+    private static void updatePeak(AtomicLong peak, long value) {
+        long current;
+        while (value > (current = peak.get()) && !peak.compareAndSet(current, value)) {
+        }
+    }
+
+    private int intArgument(String key, int defaultValue) {
+        String value = mArguments.getString(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * @return androidTest assets 中录制的 photos JSON，不存在时返回 null
+     */
+    private String readRecordedPhotos() {
+        try {
+            InputStream in = mInstrumentation.getContext().getAssets().open("photos.json");
+            Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A");
+            String json = scanner.hasNext() ? scanner.next() : null;
+            scanner.close();
+            return json;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 和 PhotoGalleryFragment 一样清除外存中的图片缓存，并清除任务清单，保证每次都是冷启动
+     */
+    private void clearDiskCache() {
+        FetchPlanner.clearCache(mContext);
+        File[] files = mContext.getFilesDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().matches(".*\\.(jpg|JPG|png|PNG|gif|GIF)")) {
+                file.delete();
+            }
+        }
+    }
+}
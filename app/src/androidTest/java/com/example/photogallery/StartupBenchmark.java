@@ -0,0 +1,123 @@
+package com.example.photogallery;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 启动基准测试：多次启动 PhotoGalleryActivity，报告首帧时间和首张缩略图时间的中位数
+ * 每次启动前清空本地数据，API 由 FakeNasaServer 提供，保证结果可重复
+ * <p>
+ * 这里测的是进程已存在时的启动；进程冷启动用 adb shell am start -S -W 配合 logcat 中的
+ * StartupTrace 和 Fully drawn 日志测量
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private static final String TAG = "StartupBenchmark";
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    private Bundle mArguments;
+    private FakeNasaServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = mInstrumentation.getTargetContext();
+        mArguments = InstrumentationRegistry.getArguments();
+
+        mServer = new FakeNasaServer();
+        mServer.setPhotoCount(intArgument("photoCount", 200));
+        mServer.setLatencyMs(intArgument("latencyMs", 100));
+        mServer.start();
+        NasaFetcher.setDefaultApiBaseUrl(mServer.getApiBaseUrl());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        NasaFetcher.setDefaultApiBaseUrl(NasaFetcher.API_BASE_URL);
+        mServer.shutdown();
+        clearAppData();
+    }
+
+    @Test
+    public void startup() {
+        int runCount = intArgument("runs", 10);
+        long[] firstFrameTimes = new long[runCount];
+        long[] firstThumbnailTimes = new long[runCount];
+
+        for (int i = 0; i < runCount; i++) {
+            clearAppData();
+            StartupTrace.reset();
+            ActivityScenario<PhotoGalleryActivity> scenario = ActivityScenario.launch(PhotoGalleryActivity.class);
+
+            long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+            while (StartupTrace.getMilestone(StartupTrace.FIRST_THUMBNAIL) < 0
+                    && SystemClock.elapsedRealtime() < deadline) {
+                SystemClock.sleep(10);
+            }
+            firstFrameTimes[i] = StartupTrace.getMilestone(StartupTrace.FIRST_FRAME);
+            firstThumbnailTimes[i] = StartupTrace.getMilestone(StartupTrace.FIRST_THUMBNAIL);
+            scenario.close();
+
+            Log.i(TAG, "Run " + i + ": firstFrame=" + firstFrameTimes[i]
+                    + "ms, firstThumbnail=" + firstThumbnailTimes[i] + "ms");
+            assertTrue("No thumbnail shown in run " + i, firstThumbnailTimes[i] >= 0);
+        }
+
+        Bundle results = new Bundle();
+        results.putLong("timeToFirstFrameMedianMs", median(firstFrameTimes));
+        results.putLong("timeToFirstThumbnailMedianMs", median(firstThumbnailTimes));
+        for (String key : results.keySet()) {
+            Log.i(TAG, key + " = " + results.get(key));
+        }
+        mInstrumentation.sendStatus(0, results);
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * 删除同步的元数据、任务清单、感知哈希和图片缓存，每次启动都从零开始
+     */
+    private void clearAppData() {
+        FetchPlanner.clearCache(mContext);
+        mContext.getSharedPreferences("gallery_sync", Context.MODE_PRIVATE).edit().clear().commit();
+        mContext.getSharedPreferences("perceptual_hashes", Context.MODE_PRIVATE).edit().clear().commit();
+        File[] files = mContext.getFilesDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().matches(".*\\.(jpg|JPG|png|PNG|gif|GIF|jsonl)")) {
+                file.delete();
+            }
+        }
+    }
+
+    private int intArgument(String key, int defaultValue) {
+        String value = mArguments.getString(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,622 @@
+package com.example.photogallery;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把某个 sol 的全部原图下载到本地，供离线查看
+ * 每个文件以流的方式写入 .part 文件，已下载的部分就是 .part 文件的长度；
+ * 中断后再次运行时用 Range 请求从断点继续，If-Range 保证服务器上的文件没有变化。
+ * 多个文件并行下载，共用一个全局的带宽上限；下载完成后校验长度和图片头，通过后才改名为正式文件
+ */
+public class BulkDownloader {
+    private static final String TAG = "BulkDownloader";
+    private static final String STATE_FILENAME = "state.json";
+    private static final String PART_SUFFIX = ".part";
+    private static final String DEFAULT_EXTENSION = ".jpg"; // NASA 的图片都是 JPG
+    private static final int MAX_ATTEMPTS = 5; // 每个文件的最多尝试次数，每次都从断点继续
+    private static final long RETRY_DELAY_MS = 1000; // 第一次重试前的等待时间，之后每次加倍
+    private static final int MAX_REDIRECTS = 5;
+    private static final int TIMEOUT_MS = 15 * 1000;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int END_MARKER_SEARCH_BYTES = 64; // 在文件末尾这么多字节中查找结束标记
+
+    private final NasaFetcher mNasaFetcher;
+    private final FetchPlanner mFetchPlanner;
+    private final String mRover;
+    private final int mSol;
+    private final File mDirectory;
+    private final File mStateFile;
+    private final int mParallelism;
+    private final BandwidthLimiter mBandwidthLimiter;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>(); // 文件名 -> Entry，访问时需要同步
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+    private volatile boolean mCancelled = false;
+    private ExecutorService mExecutor;
+    private Listener mListener;
+
+    /**
+     * 进度回调，回调发生在下载线程中
+     */
+    public interface Listener {
+        void onProgress(int completedCount, int totalCount, long bytesDownloaded);
+    }
+
+    /**
+     * 一个待下载的文件及其断点续传需要的信息
+     */
+    private static class Entry {
+        String mFilename;
+        String mUrl;
+        long mLength = -1; // 文件的总长度，还不知道时为 -1
+        String mValidator; // ETag 或 Last-Modified，用于 If-Range
+        boolean mComplete = false;
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("filename", mFilename)
+                    .put("url", mUrl)
+                    .put("length", mLength)
+                    .put("validator", mValidator == null ? "" : mValidator)
+                    .put("complete", mComplete);
+        }
+
+        static Entry fromJson(JSONObject json) throws JSONException {
+            Entry entry = new Entry();
+            entry.mFilename = json.getString("filename");
+            entry.mUrl = json.getString("url");
+            entry.mLength = json.getLong("length");
+            entry.mValidator = TextUtils.isEmpty(json.getString("validator")) ? null : json.getString("validator");
+            entry.mComplete = json.getBoolean("complete");
+            return entry;
+        }
+    }
+
+    /**
+     * @param parallelism           同时下载的文件数
+     * @param maxBytesPerSecond     所有下载加起来的带宽上限，0 表示不限速
+     */
+    public BulkDownloader(Context context, NasaFetcher nasaFetcher, String rover, int sol,
+                          int parallelism, long maxBytesPerSecond) {
+        mNasaFetcher = nasaFetcher;
+        mFetchPlanner = new FetchPlanner(context, nasaFetcher, rover);
+        mRover = rover;
+        mSol = sol;
+        mDirectory = getDirectory(context, rover, sol);
+        mStateFile = new File(mDirectory, STATE_FILENAME);
+        mParallelism = parallelism;
+        mBandwidthLimiter = new BandwidthLimiter(maxBytesPerSecond);
+    }
+
+    /**
+     * @return 保存某个 sol 原图的目录
+     */
+    public static File getDirectory(Context context, String rover, int sol) {
+        return new File(context.getFilesDir(), "bulk/" + rover + "/" + sol);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 下载这个 sol 的全部图片，已经完成的文件不会重新下载，未完成的从断点继续
+     * 会阻塞直到全部完成、失败或被取消，不能在 UI 线程中调用，每个对象只能运行一次
+     *
+     * @return 校验通过的文件
+     */
+    public List<File> run() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Failed to create " + mDirectory);
+            return new ArrayList<>();
+        }
+        loadState();
+        listPhotos();
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        synchronized (mEntries) {
+            for (final Entry entry : mEntries.values()) {
+                if (entry.mComplete && new File(mDirectory, entry.mFilename).exists()) {
+                    mCompletedCount.incrementAndGet();
+                    continue;
+                }
+                entry.mComplete = false;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        downloadWithRetry(entry);
+                        return null;
+                    }
+                });
+            }
+        }
+        Log.i(TAG, "Sol " + mSol + ": " + mCompletedCount.get() + " already downloaded, "
+                + tasks.size() + " to go");
+
+        synchronized (this) {
+            if (mCancelled) {
+                return getCompletedFiles();
+            }
+            mExecutor = Executors.newFixedThreadPool(mParallelism);
+        }
+        try {
+            mExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mExecutor.shutdownNow();
+        }
+        saveState();
+
+        List<File> files = getCompletedFiles();
+        Log.i(TAG, "Sol " + mSol + ": " + files.size() + " of " + getTotalCount() + " downloaded");
+        return files;
+    }
+
+    /**
+     * 停止下载，已下载的部分会保留，下次运行时继续
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    public int getTotalCount() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    public int getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * @return 本次运行中从网络下载的字节数
+     */
+    public long getBytesDownloaded() {
+        return mBytesDownloaded.get();
+    }
+
+    private List<File> getCompletedFiles() {
+        List<File> files = new ArrayList<>();
+        synchronized (mEntries) {
+            for (Entry entry : mEntries.values()) {
+                if (entry.mComplete) {
+                    files.add(new File(mDirectory, entry.mFilename));
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 请求这个 sol 的全部图片，加入还没有记录的文件
+     * 有任务清单时只请求清单中存在的页，没有图片的 sol 不发出请求；请求失败时沿用上次保存的列表
+     */
+    private void listPhotos() {
+        MissionManifest manifest = mFetchPlanner.getManifest();
+        int pageCount = manifest == null ? -1 : manifest.getPageCount(mSol);
+        if (pageCount == 0) {
+            Log.i(TAG, "Sol " + mSol + " has no photos");
+            return;
+        }
+
+        try {
+            int page = 1;
+            JSONArray photos;
+            do {
+                photos = mNasaFetcher.fetchPhotosPage(mRover, mSol, page++);
+                synchronized (mEntries) {
+                    for (int i = 0; i < photos.length(); i++) {
+                        JSONObject photo = photos.getJSONObject(i);
+                        String url = photo.getString("img_src");
+                        String filename = photo.getInt("id") + getExtension(url);
+                        if (!mEntries.containsKey(filename)) {
+                            Entry entry = new Entry();
+                            entry.mFilename = filename;
+                            entry.mUrl = url;
+                            mEntries.put(filename, entry);
+                        }
+                    }
+                }
+            } while (photos.length() == NasaFetcher.PAGE_SIZE && (pageCount < 0 || page <= pageCount)
+                    && !mCancelled);
+            saveState();
+        } catch (IOException ioException) {
+            Log.e(TAG, "Failed to list photos of sol " + mSol, ioException);
+        } catch (JSONException jsonException) {
+            Log.e(TAG, "Failed to parse JSON", jsonException);
+        }
+    }
+
+    /**
+     * 从 URL 的路径中取出扩展名，查询参数和片段中的点不算；没有合适的扩展名时按 JPG 处理
+     *
+     * @return 带点的扩展名，如 ".JPG"
+     */
+    static String getExtension(String url) {
+        String segment = Uri.parse(url).getLastPathSegment();
+        if (segment != null) {
+            int dot = segment.lastIndexOf('.');
+            if (dot >= 0) {
+                String extension = segment.substring(dot);
+                if (extension.matches("\\.[A-Za-z0-9]{1,5}")) {
+                    return extension;
+                }
+            }
+        }
+        return DEFAULT_EXTENSION;
+    }
+
+    private void downloadWithRetry(Entry entry) {
+        long retryDelay = RETRY_DELAY_MS;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && !mCancelled; attempt++) {
+            try {
+                download(entry);
+                mCompletedCount.incrementAndGet();
+                notifyProgress();
+                return;
+            } catch (IOException ioException) {
+                if (mCancelled) {
+                    return;
+                }
+                Log.w(TAG, "Attempt " + attempt + " of " + entry.mFilename + " failed", ioException);
+            }
+            // SystemClock.sleep() 不响应中断，cancel() 之后还会睡完整个退避时间
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            retryDelay *= 2;
+        }
+        Log.e(TAG, "Gave up on " + entry.mFilename);
+    }
+
+    /**
+     * 下载一个文件，.part 文件已有内容时只请求剩下的部分
+     *
+     * @throws InterruptedIOException 下载被取消
+     * @throws IOException            下载、写入或校验失败，已写入的部分保留给下一次尝试
+     */
+    private void download(Entry entry) throws IOException {
+        File file = new File(mDirectory, entry.mFilename);
+        File partFile = new File(mDirectory, entry.mFilename + PART_SUFFIX);
+        String urlSpec = entry.mUrl;
+
+        for (int redirects = 0; ; redirects++) {
+            long offset = partFile.length(); // 文件不存在时为 0
+            if (entry.mLength >= 0 && offset == entry.mLength) {
+                break;
+            }
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(urlSpec).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                if (entry.mValidator != null) {
+                    // 服务器上的文件变化时会返回完整的 200 响应，而不是拼上不一致的后半段
+                    connection.setRequestProperty("If-Range", entry.mValidator);
+                }
+            }
+
+            try {
+                int httpCode = connection.getResponseCode();
+                if (httpCode > 300 && httpCode < 400) {
+                    // 处理重定向问题，NASA 的图片地址会从 http 重定向到 https
+                    urlSpec = connection.getHeaderField("Location");
+                    if (TextUtils.isEmpty(urlSpec) || redirects >= MAX_REDIRECTS) {
+                        throw new IOException("Failed to redirect " + entry.mUrl);
+                    }
+                    continue;
+                }
+
+                if (httpCode == 416) {
+                    // 请求的范围超出了文件，.part 文件已经不可信
+                    deleteFile(partFile);
+                    throw new IOException("Range not satisfiable for " + entry.mFilename);
+                }
+
+                long length;
+                if (httpCode == HttpURLConnection.HTTP_PARTIAL) {
+                    String contentRange = connection.getHeaderField("Content-Range");
+                    if (parseRangeStart(contentRange) != offset) {
+                        deleteFile(partFile);
+                        throw new IOException("Unexpected Content-Range " + contentRange);
+                    }
+                    length = parseRangeTotal(contentRange);
+                } else if (httpCode == HttpURLConnection.HTTP_OK) {
+                    // 服务器不支持 Range 或文件已变化，从头开始
+                    offset = 0;
+                    length = parseLength(connection.getHeaderField("Content-Length"));
+                } else {
+                    Log.e(TAG, "Cannot handler HTTP Code: " + httpCode);
+                    throw new IOException(connection.getResponseMessage() + ": with " + urlSpec);
+                }
+
+                String validator = connection.getHeaderField("ETag");
+                if (validator == null) {
+                    validator = connection.getHeaderField("Last-Modified");
+                }
+                synchronized (mEntries) {
+                    entry.mLength = length;
+                    entry.mValidator = validator;
+                }
+                saveState();
+
+                InputStream in = connection.getInputStream();
+                OutputStream out = new FileOutputStream(partFile, offset > 0);
+                try {
+                    int bytesRead;
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    while ((bytesRead = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, bytesRead);
+                        mBytesDownloaded.addAndGet(bytesRead);
+                        mBandwidthLimiter.acquire(bytesRead);
+                        if (mCancelled) {
+                            throw new InterruptedIOException("Cancelled");
+                        }
+                    }
+                } finally {
+                    out.close();
+                    in.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+            break;
+        }
+
+        if (!verify(entry, partFile)) {
+            // 内容有误，断点不可信，下次从头下载
+            deleteFile(partFile);
+            throw new IOException("Verification failed for " + entry.mFilename);
+        }
+        if (!partFile.renameTo(file)) {
+            throw new IOException("Failed to rename " + partFile + " to " + file);
+        }
+        synchronized (mEntries) {
+            entry.mComplete = true;
+        }
+        saveState();
+    }
+
+    /**
+     * 校验下载完成的文件：长度和服务器声明的一致，且能解析出图片的尺寸
+     * 服务器没有声明长度时，要求文件以图片的结束标记结尾，在传输中断开的文件只有完整的文件头
+     * NASA 不提供文件的校验和，解析图片头可以发现拼接错位等明显的损坏
+     */
+    private static boolean verify(Entry entry, File partFile) throws IOException {
+        if (entry.mLength >= 0 && partFile.length() != entry.mLength) {
+            // 连接在传输中断开，保留 .part 文件下次继续
+            throw new IOException("Incomplete " + entry.mFilename + ": "
+                    + partFile.length() + " of " + entry.mLength + " bytes");
+        }
+        if (entry.mLength < 0 && !hasEndMarker(entry.mFilename, partFile)) {
+            // 下次用 Range 请求继续，206 响应的 Content-Range 会带上总长度
+            throw new IOException("Incomplete " + entry.mFilename + ": no end marker after "
+                    + partFile.length() + " bytes");
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = new FileInputStream(partFile);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    /**
+     * 检查文件末尾的结束标记：JPG 的 EOI（FF D9）或 PNG 的 IEND 块，允许其后有少量填充
+     * 其他格式没有可靠的结束标记，总是返回 true
+     */
+    private static boolean hasEndMarker(String filename, File file) throws IOException {
+        String name = filename.toLowerCase(Locale.US);
+        boolean jpeg = name.endsWith(".jpg") || name.endsWith(".jpeg");
+        boolean png = name.endsWith(".png");
+        if (!jpeg && !png) {
+            return true;
+        }
+
+        byte[] tail = new byte[(int) Math.min(END_MARKER_SEARCH_BYTES, file.length())];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.seek(file.length() - tail.length);
+            randomAccessFile.readFully(tail);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        for (int i = tail.length - 2; i >= 0; i--) {
+            if (jpeg && (tail[i] & 0xFF) == 0xFF && (tail[i + 1] & 0xFF) == 0xD9) {
+                return true;
+            }
+            if (png && i + 4 <= tail.length && new String(tail, i, 4, "US-ASCII").equals("IEND")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return "bytes 100-199/1000" 中的 100，无法解析时为 -1
+     */
+    private static long parseRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        return dash < 0 ? -1 : parseLength(contentRange.substring("bytes ".length(), dash));
+    }
+
+    /**
+     * @return "bytes 100-199/1000" 中的 1000，总长度未知时为 -1
+     */
+    private static long parseRangeTotal(String contentRange) {
+        int slash = contentRange.lastIndexOf('/');
+        return slash < 0 ? -1 : parseLength(contentRange.substring(slash + 1));
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete " + file);
+        }
+    }
+
+    private void notifyProgress() {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onProgress(mCompletedCount.get(), getTotalCount(), mBytesDownloaded.get());
+        }
+    }
+
+    private void loadState() {
+        if (!mStateFile.exists()) {
+            return;
+        }
+        try {
+            InputStream in = new FileInputStream(mStateFile);
+            byte[] bytes;
+            try {
+                bytes = new byte[(int) mStateFile.length()];
+                int offset = 0;
+                int bytesRead;
+                while (offset < bytes.length && (bytesRead = in.read(bytes, offset, bytes.length - offset)) > 0) {
+                    offset += bytesRead;
+                }
+            } finally {
+                in.close();
+            }
+            JSONArray entries = new JSONArray(new String(bytes, "UTF-8"));
+            synchronized (mEntries) {
+                for (int i = 0; i < entries.length(); i++) {
+                    Entry entry = Entry.fromJson(entries.getJSONObject(i));
+                    mEntries.put(entry.mFilename, entry);
+                }
+            }
+        } catch (IOException | JSONException e) {
+            // 状态丢失时 .part 文件仍在，只是第一次请求不带 If-Range
+            Log.e(TAG, "Failed to load " + mStateFile, e);
+        }
+    }
+
+    /**
+     * 先写临时文件再改名，写入中途被杀死也不会破坏已有的状态
+     */
+    private void saveState() {
+        File tempFile = new File(mDirectory, STATE_FILENAME + ".tmp");
+        synchronized (mEntries) {
+            try {
+                JSONArray entries = new JSONArray();
+                for (Entry entry : mEntries.values()) {
+                    entries.put(entry.toJson());
+                }
+                OutputStream out = new FileOutputStream(tempFile);
+                try {
+                    out.write(entries.toString().getBytes("UTF-8"));
+                } finally {
+                    out.close();
+                }
+                if (!tempFile.renameTo(mStateFile)) {
+                    Log.e(TAG, "Failed to rename " + tempFile);
+                }
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Failed to save " + mStateFile, e);
+            }
+        }
+    }
+
+    /**
+     * 令牌桶限速，多个下载线程共用
+     * 每个线程写出数据后预约相应的发送时间，超前时休眠
+     */
+    public static class BandwidthLimiter {
+        private static final long MAX_BURST_NANOS = 500 * 1000 * 1000L; // 空闲后允许的突发量，以时间计
+
+        private final long mBytesPerSecond;
+        private long mNextFreeNanos = 0;
+
+        /**
+         * @param bytesPerSecond 带宽上限，0 表示不限速
+         */
+        public BandwidthLimiter(long bytesPerSecond) {
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * 为 bytes 个字节预约带宽，超出上限时阻塞
+         *
+         * @throws InterruptedIOException 等待时线程被中断
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            if (mBytesPerSecond <= 0) {
+                return;
+            }
+            long waitNanos;
+            synchronized (this) {
+                long now = SystemClock.elapsedRealtimeNanos();
+                mNextFreeNanos = Math.max(mNextFreeNanos, now - MAX_BURST_NANOS)
+                        + bytes * 1000000000L / mBytesPerSecond;
+                waitNanos = mNextFreeNanos - now;
+            }
+            if (waitNanos <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
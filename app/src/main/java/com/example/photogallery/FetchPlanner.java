@@ -0,0 +1,161 @@
+package com.example.photogallery;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 请求前根据任务清单规划要请求的 sol 和页，避免请求没有图片的 sol 和不存在的页
+ * 清单在内存和本地文件中缓存，过期后才重新请求；请求失败时沿用过期的清单
+ */
+public class FetchPlanner {
+    private static final String TAG = "FetchPlanner";
+    private static final long MAX_AGE_MS = 60 * 60 * 1000; // NASA 每天更新几次清单，1 小时足够新
+    private static final String CACHE_FILE_PREFIX = "manifest_";
+
+    // 缓存键 -> 清单，同一进程中的 GallerySync 和 BulkDownloader 共用
+    // 锁只保护这两个 map，下载和解析清单都在锁外进行
+    private static final Map<String, MissionManifest> sManifests = new HashMap<>();
+    private static final Map<String, Long> sFetchTimes = new HashMap<>();
+
+    private final NasaFetcher mNasaFetcher;
+    private final String mRover;
+    private final String mCacheKey; // 探测车名加 API 根地址，不同服务器的清单不能混用
+    private final File mCacheFile;
+
+    public FetchPlanner(Context context, NasaFetcher nasaFetcher, String rover) {
+        mNasaFetcher = nasaFetcher;
+        mRover = rover;
+        mCacheKey = rover + "@" + nasaFetcher.getApiBaseUrl();
+        mCacheFile = new File(context.getFilesDir(), CACHE_FILE_PREFIX + rover + "_"
+                + Integer.toHexString(nasaFetcher.getApiBaseUrl().hashCode()) + ".json");
+    }
+
+    /**
+     * 删除所有探测车和服务器的清单缓存，供测试从零开始
+     */
+    static void clearCache(Context context) {
+        synchronized (sManifests) {
+            sManifests.clear();
+            sFetchTimes.clear();
+        }
+        File[] files = context.getFilesDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(CACHE_FILE_PREFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 返回缓存的清单，过期时重新请求，会访问网络，不能在 UI 线程中调用
+     * 多个线程同时发现清单过期时可能各请求一次，但不会互相等待
+     *
+     * @return 清单，没有缓存且请求失败时返回 null，调用者应退回逐页试探
+     */
+    public MissionManifest getManifest() {
+        MissionManifest manifest;
+        Long fetchTime;
+        synchronized (sManifests) {
+            manifest = sManifests.get(mCacheKey);
+            fetchTime = sFetchTimes.get(mCacheKey);
+        }
+        if (manifest == null) {
+            manifest = loadCache();
+            fetchTime = manifest == null ? null : mCacheFile.lastModified();
+        }
+        if (manifest != null && fetchTime != null && System.currentTimeMillis() - fetchTime < MAX_AGE_MS) {
+            return manifest;
+        }
+
+        MissionManifest fetchedManifest = fetch();
+        return fetchedManifest != null ? fetchedManifest : manifest;
+    }
+
+    /**
+     * 忘记缓存的清单，下次调用 getManifest() 时重新请求
+     * 本地文件只标记为过期，请求失败时仍然可以沿用
+     */
+    public void invalidate() {
+        synchronized (sManifests) {
+            sManifests.remove(mCacheKey);
+            sFetchTimes.remove(mCacheKey);
+        }
+        if (mCacheFile.exists() && !mCacheFile.setLastModified(0) && !mCacheFile.delete()) {
+            Log.e(TAG, "Failed to invalidate " + mCacheFile);
+        }
+    }
+
+    /**
+     * 下载清单到临时文件，解析成功后替换本地缓存
+     * 每次下载用不同的临时文件，同时进行的下载不会写坏彼此
+     *
+     * @return 新的清单，失败时返回 null
+     */
+    private MissionManifest fetch() {
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(CACHE_FILE_PREFIX + mRover, ".tmp", mCacheFile.getParentFile());
+            mNasaFetcher.downloadManifest(mRover, tempFile);
+            MissionManifest manifest = parse(tempFile);
+            // 改名是原子的，写入中途被杀死也不会破坏已有的缓存
+            if (!tempFile.renameTo(mCacheFile)) {
+                Log.e(TAG, "Failed to rename " + tempFile);
+            }
+            synchronized (sManifests) {
+                sManifests.put(mCacheKey, manifest);
+                sFetchTimes.put(mCacheKey, System.currentTimeMillis());
+            }
+            Log.i(TAG, "Manifest of " + mRover + ": max sol " + manifest.getMaxSol()
+                    + ", " + manifest.getTotalPhotos() + " photos");
+            return manifest;
+        } catch (IOException ioException) {
+            Log.e(TAG, "Failed to fetch manifest", ioException);
+            return null;
+        } finally {
+            // 成功时临时文件已经改名，这里只清理失败留下的文件
+            if (tempFile != null) {
+                tempFile.delete();
+                new File(tempFile.getPath() + ".part").delete();
+            }
+        }
+    }
+
+    /**
+     * 载入本地缓存的清单，文件的修改时间就是请求时间
+     */
+    private MissionManifest loadCache() {
+        if (!mCacheFile.exists()) {
+            return null;
+        }
+        try {
+            MissionManifest manifest = parse(mCacheFile);
+            synchronized (sManifests) {
+                sManifests.put(mCacheKey, manifest);
+                sFetchTimes.put(mCacheKey, mCacheFile.lastModified());
+            }
+            return manifest;
+        } catch (IOException ioException) {
+            Log.e(TAG, "Failed to load " + mCacheFile, ioException);
+            return null;
+        }
+    }
+
+    private static MissionManifest parse(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return MissionManifest.fromStream(in);
+        } finally {
+            in.close();
+        }
+    }
+}
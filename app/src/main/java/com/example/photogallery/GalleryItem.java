@@ -19,6 +19,9 @@ public class GalleryItem {
     private String mImageSource;
     private String mEarthDate;
     private Rover mRover = new GalleryItem.Rover();
+    private long mPerceptualHash;
+    private boolean mHasPerceptualHash = false;
+    private List<GalleryItem> mDuplicates = new ArrayList<>(); // 被折叠到这张图片下的近似重复图片
 
     class Camera {
         private int mId;
@@ -187,12 +190,35 @@ public class GalleryItem {
     public void setRover(Rover rover) {
         mRover = rover;
     }
+
+    public long getPerceptualHash() {
+        return mPerceptualHash;
+    }
+
+    public void setPerceptualHash(long perceptualHash) {
+        mPerceptualHash = perceptualHash;
+        mHasPerceptualHash = true;
+    }
+
+    public boolean hasPerceptualHash() {
+        return mHasPerceptualHash;
+    }
+
+    public List<GalleryItem> getDuplicates() {
+        return mDuplicates;
+    }
+
+    public void setDuplicates(List<GalleryItem> duplicates) {
+        mDuplicates = duplicates;
+    }
 }
 
 /**
  * 对使用 Gson 解析 GalleryItem 提供帮助的类
  */
 class GalleryItemGsonHelper {
+    private static Gson sGson; // Gson 是线程安全的，创建和第一次解析的代价较高，全局共用一个
+
     int id;
     int sol;
     CameraGsonHelper camera = new GalleryItemGsonHelper.CameraGsonHelper();
@@ -238,14 +264,28 @@ class GalleryItemGsonHelper {
         return galleryItem;
     }
 
+    private static synchronized Gson getGson() {
+        if (sGson == null) {
+            sGson = new Gson();
+        }
+        return sGson;
+    }
+
+    /**
+     * 预先创建 Gson 并解析一次，让 Gson 缓存 GalleryItemGsonHelper 的反射信息
+     * 应在后台线程中调用
+     */
+    public static void warmUp() {
+        getGson().fromJson("[]", GalleryItemGsonHelper[].class);
+    }
+
     /**
      * 从 jsonObject 中提取 GalleryItem 对象并返回
      * @param jsonObject GalleryItem 的 JSON 表示的 JSONObject 对象
      * @return GalleryItem 对象
      */
     public static GalleryItem toGalleryItem(JSONObject jsonObject) {
-        Gson gson = new Gson();
-        GalleryItemGsonHelper helper = gson.fromJson(String.valueOf(jsonObject), GalleryItemGsonHelper.class);
+        GalleryItemGsonHelper helper = getGson().fromJson(String.valueOf(jsonObject), GalleryItemGsonHelper.class);
         return helper.generateGalleryItem();
     }
 
@@ -255,10 +295,9 @@ class GalleryItemGsonHelper {
      * @return 保存一系列 GalleryItem 对象的 List
      */
     public static List<GalleryItem> toGalleryItemList(JSONArray jsonArray) {
-        Gson gson = new Gson();
-        GalleryItemGsonHelper[] helpers = gson.fromJson(String.valueOf(jsonArray), GalleryItemGsonHelper[].class);
+        GalleryItemGsonHelper[] helpers = getGson().fromJson(String.valueOf(jsonArray), GalleryItemGsonHelper[].class);
 
-        List<GalleryItem> galleryItemList = new ArrayList<>();
+        List<GalleryItem> galleryItemList = new ArrayList<>(helpers.length);
         for (GalleryItemGsonHelper helper : helpers) {
             galleryItemList.add(helper.generateGalleryItem());
         }
@@ -0,0 +1,478 @@
+package com.example.photogallery;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * 增量同步某个探测车的图片元数据
+ * 本地以每行一个 photo JSON 的形式追加保存，并记录同步到的 sol 和每个 sol 已保存的张数，
+ * 同步时只请求更新的页和 sol；有任务清单时跳过没有图片的 sol，只请求清单中存在的页，
+ * 并按清单补齐发布期内已经越过的 sol 中后来发布的图片
+ */
+public class GallerySync {
+    private static final String TAG = "GallerySync";
+    private static final String PREFS_NAME = "gallery_sync";
+    private static final int FIRST_SOL = 1000; // 第一次同步时的起始 sol
+    private static final int PAGE_SIZE = NasaFetcher.PAGE_SIZE;
+    private static final int MAX_SOLS_PER_SYNC = 5; // 一次同步最多前进的 sol 数，剩下的留到下次
+    private static final int MAX_EMPTY_SOLS = 3; // 没有清单时，一次同步中连续这么多个 sol 没有图片就停下
+    private static final long SOL_MS = 88775244; // 一个火星日的毫秒数
+    private static final int PUBLISH_DELAY_SOLS = 14; // 图片可能在拍摄后这么多个 sol 内才发布，更新的空 sol 不能跳过
+    private static final int MAX_STORED_PHOTOS = 2000; // 本地最多保存的图片数，超出后从最早的 sol 开始删除
+
+    private final NasaFetcher mNasaFetcher;
+    private final FetchPlanner mFetchPlanner;
+    private final String mRover;
+    private final SharedPreferences mPreferences;
+    private final File mStoreFile;
+
+    /**
+     * 同步进度回调，回调发生在调用 sync() 的线程中
+     */
+    public interface Listener {
+        /**
+         * 有任务清单时，在发出请求之前回调一次
+         *
+         * @param photoCount 这次同步将要收到的图片数，可用于预先确定列表的长度
+         */
+        void onSyncPlanned(int photoCount);
+
+        /**
+         * 每保存一页就回调一次
+         */
+        void onPhotosSynced(List<GalleryItem> galleryItemList);
+    }
+
+    public GallerySync(Context context, NasaFetcher nasaFetcher, String rover) {
+        mNasaFetcher = nasaFetcher;
+        mFetchPlanner = new FetchPlanner(context, nasaFetcher, rover);
+        mRover = rover;
+        mPreferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mStoreFile = new File(context.getFilesDir(), "gallery_" + rover + ".jsonl");
+    }
+
+    /**
+     * 载入本地已保存的图片元数据，不访问网络
+     *
+     * @return 包含 GalleryItem 的 List
+     */
+    public List<GalleryItem> loadLocal() {
+        JSONArray photos = new JSONArray();
+        if (!mStoreFile.exists()) {
+            return new ArrayList<>();
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(mStoreFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        photos.put(new JSONObject(line));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ioException) {
+            Log.e(TAG, "Failed to read " + mStoreFile, ioException);
+        } catch (JSONException jsonException) {
+            // 最后一行可能在写入时被中断，保留已经解析的部分
+            Log.e(TAG, "Failed to parse " + mStoreFile, jsonException);
+        }
+        return GalleryItemGsonHelper.toGalleryItemList(photos);
+    }
+
+    /**
+     * 从上次同步的位置开始请求新的图片，保存到本地并返回
+     *
+     * @return 新的图片，没有时返回空 List
+     */
+    public List<GalleryItem> sync() {
+        return sync(false);
+    }
+
+    /**
+     * @param refreshManifest 是否重新请求任务清单；用户主动刷新时应为 true，
+     *                        否则缓存的清单在过期前会一直认为已经追上了探测车
+     * @return 新的图片，没有时返回空 List
+     */
+    public List<GalleryItem> sync(boolean refreshManifest) {
+        return sync(refreshManifest, null);
+    }
+
+    /**
+     * @param refreshManifest 是否重新请求任务清单
+     * @param listener        接收同步计划和每一页新图片，不需要时为 null
+     * @return 新的图片，没有时返回空 List
+     */
+    public List<GalleryItem> sync(boolean refreshManifest, Listener listener) {
+        if (refreshManifest) {
+            mFetchPlanner.invalidate();
+        }
+        // 同步位置：下次从 cursorSol 继续，它之前的 sol 只在发布期内按清单补齐
+        int cursorSol = mPreferences.getInt(maxSolKey(), FIRST_SOL);
+        Map<Integer, Integer> solCounts = loadSolCounts();
+        MissionManifest manifest = mFetchPlanner.getManifest();
+        int settledSol = getSettledSol();
+
+        List<GalleryItem> newGalleryItemList = new ArrayList<>();
+        try {
+            if (manifest != null) {
+                // 先按清单定下要请求的 sol，请求前就知道一共会收到多少张
+                List<Integer> plannedSols = new ArrayList<>();
+                cursorSol = planSols(manifest, cursorSol, solCounts, plannedSols);
+                if (listener != null) {
+                    int photoCount = 0;
+                    for (int sol : plannedSols) {
+                        photoCount += manifest.getPhotoCount(sol) - getSolCount(solCounts, sol);
+                    }
+                    listener.onSyncPlanned(photoCount);
+                }
+                for (int sol : plannedSols) {
+                    syncSol(sol, manifest.getPageCount(sol), Math.max(cursorSol, sol), solCounts,
+                            newGalleryItemList, listener);
+                }
+            } else {
+                // 没有清单时逐个 sol 试探，每个 sol 逐页请求，直到某页不满
+                int sol = cursorSol;
+                int emptySols = 0;
+                for (int i = 0; i < MAX_SOLS_PER_SYNC && emptySols < MAX_EMPTY_SOLS; i++, sol++) {
+                    int count = syncSol(sol, -1, sol, solCounts, newGalleryItemList, listener);
+                    if (count > 0) {
+                        cursorSol = sol;
+                        emptySols = 0;
+                    } else {
+                        emptySols++;
+                        if (sol <= settledSol && sol >= cursorSol) {
+                            // 早已过了发布期的空 sol 不会再有图片，越过它，下次从空档之后继续试探
+                            cursorSol = sol + 1;
+                            saveState(cursorSol, solCounts);
+                        }
+                    }
+                }
+            }
+        } catch (IOException ioException) {
+            Log.e(TAG, "Failed to fetch items", ioException);
+        } catch (JSONException jsonException) {
+            Log.e(TAG, "Failed to parse JSON", jsonException);
+        }
+
+        // 中途失败时，正在同步的 sol 已经保存的部分也要计入同步位置
+        for (Map.Entry<Integer, Integer> entry : solCounts.entrySet()) {
+            if (entry.getValue() > 0) {
+                cursorSol = Math.max(cursorSol, entry.getKey());
+            }
+        }
+        // 发布期之前的 sol 不会再被补齐，不再需要记录张数
+        int windowSol = manifest != null ? manifest.getMaxSol() - PUBLISH_DELAY_SOLS
+                : (settledSol >= 0 ? settledSol : cursorSol - PUBLISH_DELAY_SOLS);
+        pruneSolCounts(solCounts, Math.min(windowSol, cursorSol));
+        saveState(cursorSol, solCounts);
+        trimHistory();
+        Log.i(TAG, "Synced " + newGalleryItemList.size() + " new photos of " + mRover);
+        return newGalleryItemList;
+    }
+
+    /**
+     * 按清单列出这次同步要请求的 sol：发布期内已经越过、但张数少于清单的 sol，
+     * 以及同步位置之后最多 MAX_SOLS_PER_SYNC 个有图片的 sol 中还没有保存完的
+     *
+     * @param plannedSols 保存要请求的 sol
+     * @return 越过已经保存完的 sol 之后的同步位置
+     */
+    private static int planSols(MissionManifest manifest, int cursorSol, Map<Integer, Integer> solCounts,
+                                List<Integer> plannedSols) {
+        // 已经越过的 sol 在发布期内还会有新图片，按清单中的张数只请求缺少的页
+        int windowSol = manifest.getMaxSol() - PUBLISH_DELAY_SOLS;
+        for (int sol = manifest.getNextSolWithPhotos(windowSol); sol >= 0 && sol < cursorSol;
+             sol = manifest.getNextSolWithPhotos(sol + 1)) {
+            if (getSolCount(solCounts, sol) < manifest.getPhotoCount(sol)) {
+                plannedSols.add(sol);
+            }
+        }
+
+        // 跳过没有图片的 sol，已经追上探测车时不发出任何请求
+        int sol = manifest.getNextSolWithPhotos(cursorSol);
+        for (int i = 0; i < MAX_SOLS_PER_SYNC && sol >= 0; i++, sol = manifest.getNextSolWithPhotos(sol + 1)) {
+            if (getSolCount(solCounts, sol) < manifest.getPhotoCount(sol)) {
+                plannedSols.add(sol);
+            } else {
+                // 这个 sol 已经保存完了
+                cursorSol = sol;
+            }
+        }
+        return cursorSol;
+    }
+
+    /**
+     * 请求一个 sol 中还没有保存的图片，每收到一页就追加到本地文件并记下同步状态
+     * 同一个 sol 中图片的顺序是固定的，已保存的张数就决定了从哪一页的第几张继续，
+     * 不同 sol 的 id 之间没有顺序，不能用 id 判断是否已保存
+     *
+     * @param pageCount 这个 sol 的页数，不知道时为 -1，逐页请求直到某页不满
+     * @param cursorSol 追加成功后保存的同步位置
+     * @return 这个 sol 已保存的图片数
+     */
+    private int syncSol(int sol, int pageCount, int cursorSol, Map<Integer, Integer> solCounts,
+                        List<GalleryItem> newGalleryItemList, Listener listener)
+            throws IOException, JSONException {
+        int count = getSolCount(solCounts, sol);
+        // 已保存的整页不再请求，从最后一个不满的页开始
+        int page = count / PAGE_SIZE + 1;
+        JSONArray photos;
+        do {
+            photos = mNasaFetcher.fetchPhotosPage(mRover, sol, page);
+            // 跳过这一页中已经保存的部分
+            JSONArray newPhotos = new JSONArray();
+            for (int j = count - (page - 1) * PAGE_SIZE; j < photos.length(); j++) {
+                newPhotos.put(photos.getJSONObject(j));
+            }
+            if (newPhotos.length() > 0) {
+                saveLandingDate(newPhotos.getJSONObject(0));
+                // 先写数据再更新同步状态，中途被杀死时下次会重新请求而不是丢失
+                if (!append(newPhotos)) {
+                    throw new IOException("Failed to append to " + mStoreFile);
+                }
+                count += newPhotos.length();
+                solCounts.put(sol, count);
+                saveState(cursorSol, solCounts);
+                // 每页都立即交出去，不等整个同步结束
+                List<GalleryItem> galleryItemList = GalleryItemGsonHelper.toGalleryItemList(newPhotos);
+                newGalleryItemList.addAll(galleryItemList);
+                if (listener != null) {
+                    listener.onPhotosSynced(galleryItemList);
+                }
+            }
+            page++;
+        } while (photos.length() == PAGE_SIZE && (pageCount < 0 || page <= pageCount));
+        return count;
+    }
+
+    /**
+     * 把新的图片追加到本地文件
+     *
+     * @return 是否写入成功
+     */
+    private boolean append(JSONArray photos) {
+        if (photos.length() == 0) {
+            return true;
+        }
+
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(mStoreFile, true), "UTF-8");
+            try {
+                for (int i = 0; i < photos.length(); i++) {
+                    writer.write(photos.getJSONObject(i).toString());
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Failed to append to " + mStoreFile, e);
+            return false;
+        }
+        mPreferences.edit()
+                .putInt(storedCountKey(), mPreferences.getInt(storedCountKey(), 0) + photos.length())
+                .apply();
+        return true;
+    }
+
+    /**
+     * 本地保存的图片超过 MAX_STORED_PHOTOS 时，从最早的 sol 开始整个删除，至少保留最新的一个 sol
+     * 被删除的 sol 的张数仍然保留，发布期内不会因此重新下载
+     */
+    private void trimHistory() {
+        if (mPreferences.getInt(storedCountKey(), 0) <= MAX_STORED_PHOTOS) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>();
+        List<Integer> sols = new ArrayList<>();
+        TreeMap<Integer, Integer> counts = new TreeMap<>(); // sol -> 文件中的张数
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(mStoreFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    int sol;
+                    try {
+                        sol = new JSONObject(line).getInt("sol");
+                    } catch (JSONException jsonException) {
+                        // 写入时被中断的行，顺便丢掉
+                        continue;
+                    }
+                    lines.add(line);
+                    sols.add(sol);
+                    Integer count = counts.get(sol);
+                    counts.put(sol, count == null ? 1 : count + 1);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ioException) {
+            Log.e(TAG, "Failed to read " + mStoreFile, ioException);
+            return;
+        }
+
+        int storedCount = lines.size();
+        while (storedCount > MAX_STORED_PHOTOS && counts.size() > 1) {
+            storedCount -= counts.pollFirstEntry().getValue();
+        }
+        int minSol = counts.firstKey();
+
+        // 先写临时文件再改名，写入中途被杀死也不会破坏已有的数据
+        File tempFile = new File(mStoreFile.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+            try {
+                for (int i = 0; i < lines.size(); i++) {
+                    if (sols.get(i) >= minSol) {
+                        writer.write(lines.get(i));
+                        writer.write('\n');
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException ioException) {
+            Log.e(TAG, "Failed to write " + tempFile, ioException);
+            return;
+        }
+        if (!tempFile.renameTo(mStoreFile)) {
+            Log.e(TAG, "Failed to rename " + tempFile);
+            return;
+        }
+        mPreferences.edit().putInt(storedCountKey(), storedCount).apply();
+        Log.i(TAG, "Trimmed " + (lines.size() - storedCount) + " photos before sol " + minSol);
+    }
+
+    /**
+     * @return 已经过了发布期的最新的 sol，不知道探测车的着陆日期时为 -1
+     */
+    private int getSettledSol() {
+        String landingDate = mPreferences.getString(landingDateKey(), null);
+        if (landingDate == null) {
+            return -1;
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            long landingTime = format.parse(landingDate).getTime();
+            return (int) ((System.currentTimeMillis() - landingTime) / SOL_MS) - PUBLISH_DELAY_SOLS;
+        } catch (ParseException parseException) {
+            Log.e(TAG, "Failed to parse landing date " + landingDate, parseException);
+            return -1;
+        }
+    }
+
+    /**
+     * 从 photo JSON 中记下探测车的着陆日期，用于计算当前的 sol
+     */
+    private void saveLandingDate(JSONObject photo) {
+        if (mPreferences.contains(landingDateKey())) {
+            return;
+        }
+        JSONObject rover = photo.optJSONObject("rover");
+        String landingDate = rover == null ? null : rover.optString("landing_date", null);
+        if (landingDate != null) {
+            mPreferences.edit().putString(landingDateKey(), landingDate).apply();
+        }
+    }
+
+    private static int getSolCount(Map<Integer, Integer> solCounts, int sol) {
+        Integer count = solCounts.get(sol);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 删除 minSol 之前的 sol 的张数
+     */
+    private static void pruneSolCounts(Map<Integer, Integer> solCounts, int minSol) {
+        Iterator<Integer> iterator = solCounts.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() < minSol) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return sol -> 本地已保存的张数
+     */
+    private Map<Integer, Integer> loadSolCounts() {
+        Map<Integer, Integer> solCounts = new TreeMap<>();
+        String json = mPreferences.getString(solCountsKey(), null);
+        if (json == null) {
+            return solCounts;
+        }
+        try {
+            JSONObject jsonObject = new JSONObject(json);
+            Iterator<String> keys = jsonObject.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                solCounts.put(Integer.parseInt(key), jsonObject.getInt(key));
+            }
+        } catch (JSONException | NumberFormatException e) {
+            Log.e(TAG, "Failed to parse " + solCountsKey(), e);
+        }
+        return solCounts;
+    }
+
+    private void saveState(int cursorSol, Map<Integer, Integer> solCounts) {
+        JSONObject jsonObject = new JSONObject();
+        try {
+            for (Map.Entry<Integer, Integer> entry : solCounts.entrySet()) {
+                jsonObject.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+        } catch (JSONException jsonException) {
+            Log.e(TAG, "Failed to save " + solCountsKey(), jsonException);
+        }
+        mPreferences.edit()
+                .putInt(maxSolKey(), cursorSol)
+                .putString(solCountsKey(), jsonObject.toString())
+                .apply();
+    }
+
+    private String maxSolKey() {
+        return mRover + "_max_sol";
+    }
+
+    private String solCountsKey() {
+        return mRover + "_sol_counts";
+    }
+
+    private String storedCountKey() {
+        return mRover + "_stored_count";
+    }
+
+    private String landingDateKey() {
+        return mRover + "_landing_date";
+    }
+}
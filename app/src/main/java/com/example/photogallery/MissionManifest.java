@@ -0,0 +1,163 @@
+package com.example.photogallery;
+
+import android.util.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 探测车的任务清单：每个有图片的 sol 的图片数
+ * 按 sol 排序保存，查询用二分查找，供请求前确定要请求哪些 sol、每个 sol 有几页
+ */
+public class MissionManifest {
+    private final int mMaxSol;
+    private final int mTotalPhotos;
+    private final int[] mSols; // 有图片的 sol，升序
+    private final int[] mPhotoCounts; // 与 mSols 一一对应
+
+    private MissionManifest(int maxSol, int totalPhotos, int[] sols, int[] photoCounts) {
+        mMaxSol = maxSol;
+        mTotalPhotos = totalPhotos;
+        mSols = sols;
+        mPhotoCounts = photoCounts;
+    }
+
+    /**
+     * 以流的方式解析清单接口的响应，只保留需要的字段，不在内存中构造整个 JSON
+     *
+     * @param in 清单接口的响应体，顶层对象中含有 photo_manifest
+     * @throws IOException 读取失败或格式不符
+     */
+    public static MissionManifest fromStream(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            MissionManifest manifest = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("photo_manifest")) {
+                    manifest = readManifest(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (manifest == null) {
+                throw new IOException("No photo_manifest in response");
+            }
+            return manifest;
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader 遇到类型不符的值时抛出的不是 IOException
+            throw new IOException("Malformed manifest", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 解析 photo_manifest 对象
+     */
+    private static MissionManifest readManifest(JsonReader reader) throws IOException {
+        int maxSol = 0;
+        int totalPhotos = 0;
+        List<int[]> solList = new ArrayList<>(); // {sol, 图片数}
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("max_sol")) {
+                maxSol = reader.nextInt();
+            } else if (name.equals("total_photos")) {
+                totalPhotos = reader.nextInt();
+            } else if (name.equals("photos")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    int[] sol = readSol(reader);
+                    if (sol[1] > 0) {
+                        solList.add(sol);
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // API 按 sol 升序返回，仍然排序一次以防万一
+        Collections.sort(solList, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+
+        int[] sols = new int[solList.size()];
+        int[] photoCounts = new int[solList.size()];
+        for (int i = 0; i < solList.size(); i++) {
+            sols[i] = solList.get(i)[0];
+            photoCounts[i] = solList.get(i)[1];
+        }
+        return new MissionManifest(maxSol, totalPhotos, sols, photoCounts);
+    }
+
+    /**
+     * 解析 photos 数组中的一项，跳过相机列表等用不到的字段
+     *
+     * @return {sol, 图片数}
+     */
+    private static int[] readSol(JsonReader reader) throws IOException {
+        int[] sol = new int[2];
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("sol")) {
+                sol[0] = reader.nextInt();
+            } else if (name.equals("total_photos")) {
+                sol[1] = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return sol;
+    }
+
+    public int getMaxSol() {
+        return mMaxSol;
+    }
+
+    public int getTotalPhotos() {
+        return mTotalPhotos;
+    }
+
+    /**
+     * @return sol 的图片数，清单中没有时为 0
+     */
+    public int getPhotoCount(int sol) {
+        int index = Arrays.binarySearch(mSols, sol);
+        return index < 0 ? 0 : mPhotoCounts[index];
+    }
+
+    /**
+     * @return 请求 sol 的全部图片需要的页数
+     */
+    public int getPageCount(int sol) {
+        return (getPhotoCount(sol) + NasaFetcher.PAGE_SIZE - 1) / NasaFetcher.PAGE_SIZE;
+    }
+
+    /**
+     * @return 不小于 sol 的第一个有图片的 sol，没有时为 -1
+     */
+    public int getNextSolWithPhotos(int sol) {
+        int index = Arrays.binarySearch(mSols, sol);
+        if (index < 0) {
+            index = -index - 1; // 插入点
+        }
+        return index < mSols.length ? mSols[index] : -1;
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.photogallery;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -9,8 +10,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
@@ -22,6 +26,35 @@ import java.util.List;
 public class NasaFetcher {
     private static final String TAG = "NasaFetcher";
     private static final String NASA_API_KEY = "NsxVGAKsVacseZxOhYwgpXgeR2pIqBFCs8OBfEsz";
+    static final String API_BASE_URL = "https://api.nasa.gov/mars-photos/api/v1";
+    public static final String DEFAULT_ROVER = "curiosity";
+    public static final int PAGE_SIZE = 25; // 带 page 参数时每页的图片数
+
+    private static String sDefaultApiBaseUrl = API_BASE_URL;
+
+    private final String mApiBaseUrl;
+
+    public NasaFetcher() {
+        this(sDefaultApiBaseUrl);
+    }
+
+    /**
+     * 修改无参构造函数使用的 API 根地址，供测试把整个应用指向本地服务器
+     */
+    static void setDefaultApiBaseUrl(String apiBaseUrl) {
+        sDefaultApiBaseUrl = apiBaseUrl;
+    }
+
+    /**
+     * @param apiBaseUrl Mars Rover Photos API 的根地址，测试时可以指向本地服务器
+     */
+    public NasaFetcher(String apiBaseUrl) {
+        mApiBaseUrl = apiBaseUrl;
+    }
+
+    public String getApiBaseUrl() {
+        return mApiBaseUrl;
+    }
 
     /**
      * 请求 urlSpec 指定的资源，并以字节串的形式返回
@@ -31,40 +64,119 @@ public class NasaFetcher {
      * @throws IOException
      */
     public byte[] getUrlBytes(String urlSpec) throws IOException {
+        return getUrlBytes(urlSpec, null);
+    }
+
+    /**
+     * 请求 urlSpec 指定的资源，并把吞吐量和延迟报告给 throughputController
+     * 只有缩略图的下载应该报告，JSON 和清单的大小、耗时与缩略图无关，会误导并发数和画质的调整
+     *
+     * @param urlSpec              资源的 URL
+     * @param throughputController 接收测量结果，不需要时为 null
+     * @return 资源的字节串表达
+     * @throws IOException
+     */
+    public byte[] getUrlBytes(String urlSpec, ThroughputController throughputController) throws IOException {
         URL url = new URL(urlSpec);
+        long start = SystemClock.elapsedRealtime();
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
 
+        String redirectHeader = null;
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             InputStream in = connection.getInputStream();
 
             int httpCode = connection.getResponseCode();
+            long latency = SystemClock.elapsedRealtime() - start;
             // 如果请求文件（网页，图片……）失败
             if (httpCode != HttpURLConnection.HTTP_OK) {
                 // 处理重定向问题
                 if (httpCode > 300 && httpCode < 400) {
-                    String redirectHeader = connection.getHeaderField("Location");
+                    redirectHeader = connection.getHeaderField("Location");
 
                     if (TextUtils.isEmpty(redirectHeader))
                         throw new IOException("Failed to redirect, there no useful redirect location");
-
-                    // 危险的递归，但是很方便不是吗？
-                    return getUrlBytes(redirectHeader);
                 }
                 else {
                     // 生成 IOException
                     Log.e(TAG, "Cannot handler HTTP Code: " + connection.getResponseCode());
                     throw new IOException(connection.getResponseMessage() + ": with " + urlSpec);
                 }
+            } else {
+                int bytesRead = 0;
+                byte[] buffer = new byte[1024];
+                while ((bytesRead = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, bytesRead);
+                }
+                out.close();
+
+                // 报告吞吐量和延迟，供调整下载并发数
+                if (throughputController != null) {
+                    throughputController.onRequestComplete(out.size(), latency,
+                            SystemClock.elapsedRealtime() - start);
+                }
+                return out.toByteArray();
+            }
+        } catch (IOException ioException) {
+            if (throughputController != null) {
+                throughputController.onRequestFailed();
+            }
+            throw ioException;
+        } finally {
+            connection.disconnect();
+        }
+
+        // 危险的递归，但是很方便不是吗？
+        return getUrlBytes(redirectHeader, throughputController);
+    }
+
+    /**
+     * 请求 urlSpec 指定的资源，并以流的方式直接写入 file，不在内存中缓冲整个文件
+     *
+     * @param urlSpec 资源的 URL
+     * @param file    保存资源的文件
+     * @throws IOException 下载或写入失败
+     */
+    public void downloadToFile(String urlSpec, File file) throws IOException {
+        URL url = new URL(urlSpec);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        try {
+            int httpCode = connection.getResponseCode();
+            if (httpCode != HttpURLConnection.HTTP_OK) {
+                // 处理重定向问题
+                if (httpCode > 300 && httpCode < 400) {
+                    String redirectHeader = connection.getHeaderField("Location");
+
+                    if (TextUtils.isEmpty(redirectHeader))
+                        throw new IOException("Failed to redirect, there no useful redirect location");
+
+                    downloadToFile(redirectHeader, file);
+                    return;
+                } else {
+                    Log.e(TAG, "Cannot handler HTTP Code: " + httpCode);
+                    throw new IOException(connection.getResponseMessage() + ": with " + urlSpec);
+                }
             }
 
-            int bytesRead = 0;
-            byte[] buffer = new byte[1024];
-            while ((bytesRead = in.read(buffer)) > 0) {
-                out.write(buffer, 0, bytesRead);
+            // 先写入临时文件，下载完成后再改名，避免留下不完整的文件
+            File partFile = new File(file.getPath() + ".part");
+            InputStream in = connection.getInputStream();
+            OutputStream out = new FileOutputStream(partFile);
+            try {
+                int bytesRead;
+                byte[] buffer = new byte[8192];
+                while ((bytesRead = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, bytesRead);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+
+            if (!partFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + partFile + " to " + file);
             }
-            out.close();
-            return out.toByteArray();
         } finally {
             connection.disconnect();
         }
@@ -90,7 +202,7 @@ public class NasaFetcher {
         List<GalleryItem> galleryItemList = new ArrayList<>();
 
         try {
-            String url = Uri.parse("https://api.nasa.gov/mars-photos/api/v1/rovers/curiosity/photos")
+            String url = Uri.parse(getPhotosEndpoint(DEFAULT_ROVER))
                     .buildUpon()
                     .appendQueryParameter("sol", "1000")
                     .appendQueryParameter("api_key", NASA_API_KEY)
@@ -111,6 +223,51 @@ public class NasaFetcher {
         return galleryItemList;
     }
 
+    /**
+     * 把探测车的任务清单下载到 file，其中有每个 sol 的图片数和拍摄的相机
+     * 清单有几 MB，直接写入文件，不在内存中缓冲
+     *
+     * @param rover 探测车名
+     * @param file  保存清单的文件，内容是 API 的原始响应
+     * @throws IOException 访问 API 或写入文件异常
+     */
+    public void downloadManifest(String rover, File file) throws IOException {
+        String url = Uri.parse(mApiBaseUrl + "/manifests/" + rover)
+                .buildUpon()
+                .appendQueryParameter("api_key", NASA_API_KEY)
+                .build().toString();
+
+        downloadToFile(url, file);
+        Log.i(TAG, "Received manifest of " + rover);
+    }
+
+    /**
+     * 请求某个 sol 的一页图片（每页最多 25 张），返回原始的 photos 数组
+     *
+     * @param rover 探测车名
+     * @param sol   火星日
+     * @param page  页码，从 1 开始
+     * @return photos 数组
+     * @throws IOException   访问 API 异常
+     * @throws JSONException 解析 JSON 异常
+     */
+    public JSONArray fetchPhotosPage(String rover, int sol, int page) throws IOException, JSONException {
+        String url = Uri.parse(getPhotosEndpoint(rover))
+                .buildUpon()
+                .appendQueryParameter("sol", String.valueOf(sol))
+                .appendQueryParameter("page", String.valueOf(page))
+                .appendQueryParameter("api_key", NASA_API_KEY)
+                .build().toString();
+
+        String jsonString = getUrlString(url);
+        Log.i(TAG, "Received page " + page + " of sol " + sol);
+        return new JSONObject(jsonString).getJSONArray("photos");
+    }
+
+    private String getPhotosEndpoint(String rover) {
+        return mApiBaseUrl + "/rovers/" + rover + "/photos";
+    }
+
     /**
      * 从 jsonBody 中解析信息并以 GalleryItem 对象保存到 itemList 中。
      *
@@ -0,0 +1,75 @@
+package com.example.photogallery;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 感知哈希（dHash）：相似的图片哈希的汉明距离小，用于发现连拍产生的近似重复图片
+ */
+public class PerceptualHash {
+    /// 汉明距离不超过该值的两张图片视为近似重复
+    public static final int MAX_DUPLICATE_DISTANCE = 10;
+
+    /**
+     * 计算 64 位的 dHash：缩小到 9x8 的灰度图，每一位表示一个像素是否比右边的像素亮
+     *
+     * @param bitmap 图片
+     * @return 哈希值
+     */
+    public static long dHash(Bitmap bitmap) {
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, 9, 8, true);
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                hash <<= 1;
+                if (luminance(small.getPixel(x, y)) > luminance(small.getPixel(x + 1, y))) {
+                    hash |= 1;
+                }
+            }
+        }
+        if (small != bitmap) {
+            small.recycle();
+        }
+        return hash;
+    }
+
+    public static int hammingDistance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    /**
+     * 把相邻的、同一相机拍摄的近似重复图片折叠到组内的第一张图片下
+     * 没有哈希的图片不参与折叠
+     *
+     * @param galleryItemList 按拍摄顺序排列的图片
+     * @return 每组的第一张图片，组内其余图片保存在 GalleryItem.getDuplicates() 中
+     */
+    public static List<GalleryItem> collapseNearDuplicates(List<GalleryItem> galleryItemList) {
+        List<GalleryItem> collapsed = new ArrayList<>();
+        GalleryItem groupHead = null;
+        for (GalleryItem galleryItem : galleryItemList) {
+            if (groupHead != null && isNearDuplicate(groupHead, galleryItem)) {
+                groupHead.getDuplicates().add(galleryItem);
+                continue;
+            }
+            galleryItem.setDuplicates(new ArrayList<GalleryItem>());
+            collapsed.add(galleryItem);
+            groupHead = galleryItem;
+        }
+        return collapsed;
+    }
+
+    private static boolean isNearDuplicate(GalleryItem groupHead, GalleryItem galleryItem) {
+        return groupHead.hasPerceptualHash() && galleryItem.hasPerceptualHash()
+                && String.valueOf(groupHead.getCamera().getName()).equals(galleryItem.getCamera().getName())
+                && hammingDistance(groupHead.getPerceptualHash(), galleryItem.getPerceptualHash())
+                <= MAX_DUPLICATE_DISTANCE;
+    }
+
+    private static int luminance(int color) {
+        return (Color.red(color) * 299 + Color.green(color) * 587 + Color.blue(color) * 114) / 1000;
+    }
+}
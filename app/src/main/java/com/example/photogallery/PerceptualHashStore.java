@@ -0,0 +1,93 @@
+package com.example.photogallery;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 以 GalleryItem 的 id 为键持久化感知哈希，下次载入同一个 sol 时不用下载就能折叠重复图片
+ * 每次写入都会重写整个 SharedPreferences 文件，因此新的哈希先缓存在内存中，攒够一批或 flush() 时才写入
+ */
+public class PerceptualHashStore {
+    private static final String PREFS_NAME = "perceptual_hashes";
+    private static final int BATCH_SIZE = 64; // 攒够这么多个哈希才写入一次
+
+    private final SharedPreferences mPreferences;
+    private final Map<String, Long> mPendingHashes = new HashMap<>(); // 还没写入的哈希，访问时需要同步
+
+    public PerceptualHashStore(Context context) {
+        mPreferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 为已保存过哈希的图片填上哈希
+     *
+     * @param galleryItemList 需要填充的图片
+     */
+    public void load(List<GalleryItem> galleryItemList) {
+        for (GalleryItem galleryItem : galleryItemList) {
+            String key = String.valueOf(galleryItem.getId());
+            if (mPreferences.contains(key)) {
+                galleryItem.setPerceptualHash(mPreferences.getLong(key, 0));
+            }
+        }
+    }
+
+    /**
+     * 保存一个哈希，可以在任意线程中调用
+     */
+    public void put(int id, long hash) {
+        synchronized (mPendingHashes) {
+            mPendingHashes.put(String.valueOf(id), hash);
+            if (mPendingHashes.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * 把内存中的哈希一次写入
+     */
+    public void flush() {
+        synchronized (mPendingHashes) {
+            if (mPendingHashes.isEmpty()) {
+                return;
+            }
+            SharedPreferences.Editor editor = mPreferences.edit();
+            for (Map.Entry<String, Long> entry : mPendingHashes.entrySet()) {
+                editor.putLong(entry.getKey(), entry.getValue());
+            }
+            editor.apply();
+            mPendingHashes.clear();
+        }
+    }
+
+    /**
+     * 删除不在 galleryItemList 中的图片的哈希，避免文件无限增长
+     *
+     * @param galleryItemList 本地保存的全部图片
+     */
+    public void retain(List<GalleryItem> galleryItemList) {
+        Set<String> keys = new HashSet<>();
+        for (GalleryItem galleryItem : galleryItemList) {
+            keys.add(String.valueOf(galleryItem.getId()));
+        }
+
+        SharedPreferences.Editor editor = mPreferences.edit();
+        boolean changed = false;
+        for (String key : mPreferences.getAll().keySet()) {
+            if (!keys.contains(key)) {
+                editor.remove(key);
+                changed = true;
+            }
+        }
+        if (changed) {
+            editor.apply();
+        }
+    }
+}
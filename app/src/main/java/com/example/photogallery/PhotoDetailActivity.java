@@ -0,0 +1,25 @@
+package com.example.photogallery;
+
+import android.content.Context;
+import android.content.Intent;
+
+import androidx.fragment.app.Fragment;
+
+/**
+ * 全屏查看单张图片的 Activity
+ */
+public class PhotoDetailActivity extends SingleFragmentActivity {
+    private static final String EXTRA_IMAGE_SOURCE = "com.example.photogallery.image_source";
+
+    public static Intent newIntent(Context context, String imageSource) {
+        Intent intent = new Intent(context, PhotoDetailActivity.class);
+        intent.putExtra(EXTRA_IMAGE_SOURCE, imageSource);
+        return intent;
+    }
+
+    @Override
+    protected Fragment createFragment() {
+        String imageSource = getIntent().getStringExtra(EXTRA_IMAGE_SOURCE);
+        return PhotoDetailFragment.newInstance(imageSource);
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.photogallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 全屏查看图片：先显示缩略图缓存中的低分辨率底图，原图下载完成后按缩放级别分块解码
+ */
+public class PhotoDetailFragment extends Fragment {
+    private static final String TAG = "PhotoDetailFragment";
+    private static final String ARG_IMAGE_SOURCE = "image_source";
+    private static final String DETAIL_CACHE_DIR = "detail"; // 原图在 cache 目录中的位置
+    private static final long MAX_DETAIL_CACHE_BYTES = 50 * 1024 * 1024; // 原图缓存的上限，超出后删除最久没有查看的
+
+    private String mImageSource;
+    private TiledImageView mTiledImageView;
+    private TileCache mTileCache;
+    private TileDecoder mTileDecoder;
+    private LoadImageTask mLoadImageTask;
+
+    public static PhotoDetailFragment newInstance(String imageSource) {
+        Bundle args = new Bundle();
+        args.putString(ARG_IMAGE_SOURCE, imageSource);
+
+        PhotoDetailFragment fragment = new PhotoDetailFragment();
+        fragment.setArguments(args);
+        return fragment;
+    }
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mImageSource = getArguments().getString(ARG_IMAGE_SOURCE);
+
+        // 图块缓存最多占用可用内存的 1/8
+        mTileCache = new TileCache((int) (Runtime.getRuntime().maxMemory() / 8));
+        getActivity().getApplicationContext().registerComponentCallbacks(mTileCache);
+
+        Handler responseHandler = new Handler();
+        mTileDecoder = new TileDecoder(responseHandler, mTileCache);
+        mTileDecoder.setTileDecodeListener(new TileDecoder.TileDecodeListener() {
+            @Override
+            public void onSourceReady(int width, int height) {
+                if (mTiledImageView != null) {
+                    mTiledImageView.setImageSize(width, height);
+                }
+            }
+
+            @Override
+            public void onTileDecoded(String key) {
+                if (mTiledImageView != null) {
+                    mTiledImageView.invalidate();
+                }
+            }
+        });
+        mTileDecoder.start();
+        mTileDecoder.getLooper();
+        Log.i(TAG, "Tile decoder started");
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_photo_detail, container, false);
+
+        mTiledImageView = (TiledImageView) view.findViewById(R.id.detail_tiled_image_view);
+        mTiledImageView.setTileSource(mTileCache, mTileDecoder);
+
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        mLoadImageTask = new LoadImageTask(metrics.widthPixels, metrics.heightPixels);
+        mLoadImageTask.execute();
+
+        return view;
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mLoadImageTask.cancel(false);
+        mTileDecoder.clearQueue();
+        mTiledImageView = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mTileDecoder.quit();
+        getActivity().getApplicationContext().unregisterComponentCallbacks(mTileCache);
+        mTileCache.evictAll();
+        Log.i(TAG, "Tile decoder destroyed");
+    }
+
+    /**
+     * 在后台载入底图并下载原图
+     * AsyncTask 泛型的 3 个参数：
+     * 1. execute() 的参数
+     * 2. 底图
+     * 3. 下载好的原图文件
+     */
+    private class LoadImageTask extends AsyncTask<Void, Bitmap, File> {
+        private final int mScreenWidth;
+        private final int mScreenHeight;
+        private final ThumbnailDownloader.BitmapDiskCache mBitmapDiskCache;
+        private final File mCacheDir;
+
+        LoadImageTask(int screenWidth, int screenHeight) {
+            mScreenWidth = screenWidth;
+            mScreenHeight = screenHeight;
+            mBitmapDiskCache = new ThumbnailDownloader.BitmapDiskCache(getActivity().getApplicationContext());
+            mCacheDir = new File(getActivity().getCacheDir(), DETAIL_CACHE_DIR);
+        }
+
+        @Override
+        protected File doInBackground(Void... params) {
+            String filename = mBitmapDiskCache.generateFilename(mImageSource);
+
+            // 使用缩略图缓存作为底图
+            Bitmap baseBitmap = mBitmapDiskCache.loadBitmap(filename, mScreenWidth, mScreenHeight);
+            if (baseBitmap != null) {
+                publishProgress(baseBitmap);
+            }
+
+            File file = new File(mCacheDir, filename);
+            if (!file.exists()) {
+                mCacheDir.mkdirs();
+                try {
+                    new NasaFetcher().downloadToFile(mImageSource, file);
+                } catch (IOException ioException) {
+                    Log.e(TAG, "Error downloading image", ioException);
+                    return null;
+                }
+            } else {
+                // 修改时间记录最近一次查看，淘汰时按它排序
+                file.setLastModified(System.currentTimeMillis());
+            }
+            trimCacheDir(file);
+
+            // 缩略图缓存不存在时从原图采样出底图
+            if (baseBitmap == null && !isCancelled()) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(file.getPath(), options);
+                options.inSampleSize = ThumbnailDownloader.calculateInSampleSize(
+                        options.outWidth, options.outHeight, mScreenWidth, mScreenHeight);
+                options.inJustDecodeBounds = false;
+                publishProgress(BitmapFactory.decodeFile(file.getPath(), options));
+            }
+            return file;
+        }
+
+        /**
+         * 原图缓存超过上限时，从最久没有查看的开始删除，正在查看的文件始终保留
+         *
+         * @param currentFile 正在查看的原图
+         */
+        private void trimCacheDir(File currentFile) {
+            File[] files = mCacheDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(b.lastModified(), a.lastModified());
+                }
+            });
+
+            long totalBytes = currentFile.length();
+            for (File file : files) {
+                if (file.equals(currentFile)) {
+                    continue;
+                }
+                long length = file.length();
+                if (totalBytes + length > MAX_DETAIL_CACHE_BYTES) {
+                    if (!file.delete()) {
+                        Log.e(TAG, "Failed to delete " + file);
+                    }
+                } else {
+                    totalBytes += length;
+                }
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Bitmap... values) {
+            if (mTiledImageView != null) {
+                mTiledImageView.setBaseBitmap(values[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            if (file != null) {
+                mTileDecoder.setSource(file);
+            }
+        }
+    }
+}
@@ -10,10 +10,15 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -33,14 +38,23 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SNIHostName;
 
 public class PhotoGalleryFragment extends Fragment {
     private static final String TAG = "PhotoGalleryFragment";
+    private static final int BULK_DOWNLOAD_PARALLELISM = 3;
+    private static final long BULK_DOWNLOAD_MAX_BYTES_PER_SECOND = 1024 * 1024; // 给缩略图留出带宽
     private RecyclerView mPhotoRecyclerView;
     private List<GalleryItem> mGalleryItemList = new ArrayList<>();
-    private ThumbnailDownloader<PhotoHolder> mThumbnailDownloader;
+    private ThumbnailDownloader<PhotoHolder> mThumbnailDownloader; // 通过 getThumbnailDownloader() 访问
+    private Handler mResponseHandler;
+    private PerceptualHashStore mPerceptualHashStore;
+    private GallerySync mGallerySync;
+    private ConcurrentHashMap<String, GalleryItem> mGalleryItemMap = new ConcurrentHashMap<>(); // URL -> GalleryItem
+    private BulkDownloader mBulkDownloader; // 正在进行的整个 sol 的下载，没有时为 null
+    private int mPlaceholderCount = 0; // 同步计划中还没有收到的图片数，在列表末尾显示为占位格子
 
     public static PhotoGalleryFragment newInstance() {
         return new PhotoGalleryFragment();
@@ -48,48 +62,127 @@ public class PhotoGalleryFragment extends Fragment {
 
     @Override
     public void onCreate(@Nullable @org.jetbrains.annotations.Nullable Bundle savedInstanceState) {
+        StartupTrace.beginSection("PhotoGalleryFragment.onCreate");
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
-        new FetchGalleryItemsTask().execute();
+        setHasOptionsMenu(true);
+        mPerceptualHashStore = new PerceptualHashStore(getActivity());
+        mGallerySync = new GallerySync(getActivity(), new NasaFetcher(), NasaFetcher.DEFAULT_ROVER);
+        // FetchGalleryItemsTask 通过它在 UI 线程中显示同步计划
+        mResponseHandler = new Handler();
+        // 网络请求是启动中最慢的部分，最先发出
+        new FetchGalleryItemsTask(true).execute();
+        // 在 JSON 返回之前于后台预热 Gson
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                GalleryItemGsonHelper.warmUp();
+            }
+        });
 
-        Handler responseHandler = new Handler();
-        mThumbnailDownloader = new ThumbnailDownloader<>(responseHandler, getActivity());
+        StartupTrace.endSection();
+    }
+
+    /**
+     * 首帧之后或第一次需要时才创建并启动 ThumbnailDownloader，避免启动时创建一批线程拖慢首帧
+     * 只能在 UI 线程中调用
+     */
+    private ThumbnailDownloader<PhotoHolder> getThumbnailDownloader() {
+        if (mThumbnailDownloader != null) {
+            return mThumbnailDownloader;
+        }
+
+        StartupTrace.beginSection("ThumbnailDownloader.start");
+        mThumbnailDownloader = new ThumbnailDownloader<>(mResponseHandler, getActivity());
         mThumbnailDownloader.setThumbnailDownloadListener(new ThumbnailDownloader.ThumbnailDownloadListener<PhotoHolder>() {
             @Override
             public void onThumbnailDownloaded(PhotoHolder photoHolder, Bitmap thumbnail) {
                 Drawable drawable = new BitmapDrawable(getResources(), thumbnail);
                 photoHolder.bindDrawable(drawable);
+                if (thumbnail != null && StartupTrace.getMilestone(StartupTrace.FIRST_THUMBNAIL) < 0) {
+                    StartupTrace.mark(StartupTrace.FIRST_THUMBNAIL);
+                    if (isAdded()) {
+                        getActivity().reportFullyDrawn();
+                    }
+                }
+            }
+        });
+        mThumbnailDownloader.setPerceptualHashListener(new ThumbnailDownloader.PerceptualHashListener() {
+            @Override
+            public void onPerceptualHash(String url, long hash) {
+                // 保存哈希，下次载入时据此折叠近似重复的图片
+                GalleryItem galleryItem = mGalleryItemMap.get(url);
+                if (galleryItem != null && !galleryItem.hasPerceptualHash()) {
+                    galleryItem.setPerceptualHash(hash);
+                    mPerceptualHashStore.put(galleryItem.getId(), hash);
+                }
             }
         });
+        // 快速滚动时大量缓存命中会集中返回，按帧批量更新 ImageView
+        mThumbnailDownloader.setFrameBatchedDelivery(true);
         mThumbnailDownloader.start();
         mThumbnailDownloader.getLooper();
         Log.i(TAG, "Background thread started");
+        StartupTrace.endSection();
+        return mThumbnailDownloader;
     }
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
-        View view = inflater.inflate(R.layout.fragment_photo_gallery, container, false);
+        final View view = inflater.inflate(R.layout.fragment_photo_gallery, container, false);
 
         mPhotoRecyclerView = (RecyclerView) view.findViewById(R.id.photo_recycler_view);
         GridLayoutManager layoutManager = new GridLayoutManager(getActivity(), 3);
         layoutManager.setItemPrefetchEnabled(true);
-        layoutManager.setInitialPrefetchItemCount(10);
         mPhotoRecyclerView.setLayoutManager(layoutManager);
 
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                // post 的任务在这一帧绘制完成后执行
+                view.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        StartupTrace.mark(StartupTrace.FIRST_FRAME);
+                        if (isAdded()) {
+                            getThumbnailDownloader();
+                        }
+                    }
+                });
+                return true;
+            }
+        });
+
         return view;
     }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+        // 进入后台后可能随时被杀死，写入还没保存的感知哈希
+        mPerceptualHashStore.flush();
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        mThumbnailDownloader.clearQueue();
+        if (mThumbnailDownloader != null) {
+            mThumbnailDownloader.clearQueue();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mThumbnailDownloader.quit();
-        Log.i(TAG, "Background thread destroyed");
+        if (mBulkDownloader != null) {
+            // 已下载的部分会保留，下次从断点继续
+            mBulkDownloader.cancel();
+        }
+        if (mThumbnailDownloader != null) {
+            mThumbnailDownloader.quit();
+            Log.i(TAG, "Background thread destroyed");
+        }
         clearInternalStorageCache();
     }
 
@@ -116,42 +209,249 @@ public class PhotoGalleryFragment extends Fragment {
         }
     }
 
+    /**
+     * 在列表末尾放上占位格子，图片到达之前滚动条的范围就已经是同步后的大小
+     *
+     * @param placeholderCount 占位格子数，0 表示全部去掉
+     */
+    private void setPlaceholderCount(int placeholderCount) {
+        int oldPlaceholderCount = mPlaceholderCount;
+        mPlaceholderCount = placeholderCount;
+        if (!isAdded() || mPhotoRecyclerView.getAdapter() == null) {
+            return;
+        }
+        int size = mGalleryItemList.size();
+        if (placeholderCount > oldPlaceholderCount) {
+            mPhotoRecyclerView.getAdapter().notifyItemRangeInserted(size + oldPlaceholderCount,
+                    placeholderCount - oldPlaceholderCount);
+        } else if (placeholderCount < oldPlaceholderCount) {
+            mPhotoRecyclerView.getAdapter().notifyItemRangeRemoved(size + placeholderCount,
+                    oldPlaceholderCount - placeholderCount);
+        }
+    }
+
+    @Override
+    public void onCreateOptionsMenu(@NonNull Menu menu, @NonNull MenuInflater inflater) {
+        super.onCreateOptionsMenu(menu, inflater);
+        inflater.inflate(R.menu.fragment_photo_gallery, menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == R.id.menu_item_refresh) {
+            // 只请求上次同步之后的新图片
+            new FetchGalleryItemsTask(false).execute();
+            return true;
+        }
+        if (item.getItemId() == R.id.menu_item_download_sol) {
+            if (mBulkDownloader == null && !mGalleryItemList.isEmpty()) {
+                // 下载最新的 sol
+                int sol = mGalleryItemList.get(mGalleryItemList.size() - 1).getSol();
+                mBulkDownloader = new BulkDownloader(getActivity(), new NasaFetcher(), NasaFetcher.DEFAULT_ROVER,
+                        sol, BULK_DOWNLOAD_PARALLELISM, BULK_DOWNLOAD_MAX_BYTES_PER_SECOND);
+                new BulkDownloadTask(sol).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     /**
      * 在后台请求 API，解析获得数据后更新 UI
      * AsyncTask 泛型的 3 个参数：
      * 1. execute() 的参数
-     * 2. 更新进度需要的类型
-     * 3. doInBackground() 的返回值和 onPostExecute 的参数
+     * 2. 本地已保存的图片，之后是同步得到的每一页新图片
+     * 3. 无
+     */
+    private class FetchGalleryItemsTask extends AsyncTask<Void, List<GalleryItem>, Void> {
+        private final boolean mLoadLocal;
+        private boolean mReplaceList; // 下一次进度是否是本地已保存的图片，只在 UI 线程访问
+
+        /**
+         * @param loadLocal 是否先载入本地已保存的图片
+         */
+        FetchGalleryItemsTask(boolean loadLocal) {
+            mLoadLocal = loadLocal;
+            mReplaceList = loadLocal;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            StartupTrace.beginSection("FetchGalleryItemsTask");
+            try {
+                if (mLoadLocal) {
+                    List<GalleryItem> localGalleryItemList = mGallerySync.loadLocal();
+                    if (!localGalleryItemList.isEmpty()) {
+                        // 本地保存的就是全部图片，其他图片的哈希不再需要
+                        mPerceptualHashStore.retain(localGalleryItemList);
+                    }
+                    publishProgress(prepare(localGalleryItemList));
+                }
+                // 用户主动刷新时重新请求任务清单，才能发现探测车新拍的 sol；
+                // 每收到一页就显示出来，不等整个同步结束
+                mGallerySync.sync(!mLoadLocal, new GallerySync.Listener() {
+                    @Override
+                    public void onSyncPlanned(final int photoCount) {
+                        // 和 publishProgress() 一样按顺序进入 UI 线程的消息队列，先于第一页到达
+                        mResponseHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                setPlaceholderCount(photoCount);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onPhotosSynced(List<GalleryItem> galleryItemList) {
+                        publishProgress(prepare(galleryItemList));
+                    }
+                });
+                return null;
+            } finally {
+                StartupTrace.endSection();
+            }
+        }
+
+        /**
+         * 用之前保存的感知哈希折叠近似重复的图片，被折叠的图片在展开前不会下载
+         */
+        private List<GalleryItem> prepare(List<GalleryItem> galleryItemList) {
+            for (GalleryItem galleryItem : galleryItemList) {
+                mGalleryItemMap.put(galleryItem.getImageSource(), galleryItem);
+            }
+            mPerceptualHashStore.load(galleryItemList);
+            return PerceptualHash.collapseNearDuplicates(galleryItemList);
+        }
+
+        @Override
+        protected void onProgressUpdate(List<GalleryItem>... values) {
+            if (mReplaceList) {
+                mReplaceList = false;
+                mGalleryItemList = values[0];
+                // UI 操作
+                setupAdapter();
+                return;
+            }
+            StartupTrace.mark(StartupTrace.FIRST_FETCH);
+            appendGalleryItems(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            StartupTrace.mark(StartupTrace.FIRST_FETCH);
+            // 同步中途失败或近似重复被折叠时，剩下的占位格子不会再被填上
+            setPlaceholderCount(0);
+        }
+
+        private void appendGalleryItems(List<GalleryItem> newGalleryItemList) {
+            if (newGalleryItemList.isEmpty()) {
+                return;
+            }
+            // 新图片追加到末尾，先填上占位格子，已显示的格子不用重新绑定
+            int oldSize = mGalleryItemList.size();
+            int photoCount = 0; // 折叠之前的张数，与同步计划中的张数对应
+            for (GalleryItem galleryItem : newGalleryItemList) {
+                photoCount += 1 + galleryItem.getDuplicates().size();
+            }
+            int filled = Math.min(photoCount, mPlaceholderCount);
+            mPlaceholderCount -= filled;
+            mGalleryItemList.addAll(newGalleryItemList);
+            if (isAdded() && mPhotoRecyclerView.getAdapter() != null) {
+                RecyclerView.Adapter adapter = mPhotoRecyclerView.getAdapter();
+                int added = newGalleryItemList.size();
+                adapter.notifyItemRangeChanged(oldSize, Math.min(added, filled));
+                if (filled > added) {
+                    // 近似重复被折叠，多出的占位格子删掉
+                    adapter.notifyItemRangeRemoved(oldSize + added, filled - added);
+                } else if (added > filled) {
+                    adapter.notifyItemRangeInserted(oldSize + filled, added - filled);
+                }
+            } else {
+                setupAdapter();
+            }
+        }
+    }
+
+    /**
+     * 在后台下载整个 sol 的原图，完成后提示结果
      */
-    private class FetchGalleryItemsTask extends AsyncTask<Void, Void, List<GalleryItem>> {
+    private class BulkDownloadTask extends AsyncTask<Void, Void, Integer> {
+        private final int mSol;
+
+        BulkDownloadTask(int sol) {
+            mSol = sol;
+        }
+
         @Override
-        protected List<GalleryItem> doInBackground(Void... params) {
-            return new NasaFetcher().fetchGalleryItems();
+        protected Integer doInBackground(Void... params) {
+            return mBulkDownloader.run().size();
         }
 
         @Override
-        protected void onPostExecute(List<GalleryItem> galleryItemList) {
-            mGalleryItemList = galleryItemList;
-            // UI 操作
-            setupAdapter();
+        protected void onPostExecute(Integer completedCount) {
+            int totalCount = mBulkDownloader.getTotalCount();
+            mBulkDownloader = null;
+            if (isAdded()) {
+                Toast.makeText(getActivity(),
+                        getString(R.string.bulk_download_result_format, completedCount, totalCount, mSol),
+                        Toast.LENGTH_SHORT).show();
+            }
         }
     }
 
-    private class PhotoHolder extends RecyclerView.ViewHolder {
+    private class PhotoHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
         private ImageView mImageView;
+        private TextView mDuplicateCountTextView;
+        private GalleryItem mGalleryItem;
 
         public PhotoHolder(View itemView) {
             super(itemView);
             mImageView = (ImageView) itemView.findViewById(R.id.item_image_view);
+            mDuplicateCountTextView = (TextView) itemView.findViewById(R.id.item_duplicate_count_text_view);
+            itemView.setOnClickListener(this);
         }
 
         public void bindDrawable(Drawable drawable) {
             mImageView.setImageDrawable(drawable);
         }
+
+        /**
+         * 绑定还没有收到的图片的占位格子
+         */
+        public void bindPlaceholder() {
+            mGalleryItem = null;
+            mDuplicateCountTextView.setVisibility(View.GONE);
+        }
+
+        public void bindGalleryItem(GalleryItem galleryItem) {
+            mGalleryItem = galleryItem;
+            int duplicateCount = galleryItem.getDuplicates().size();
+            if (duplicateCount > 0) {
+                mDuplicateCountTextView.setText(getString(R.string.duplicate_count_format, duplicateCount));
+                mDuplicateCountTextView.setVisibility(View.VISIBLE);
+            } else {
+                mDuplicateCountTextView.setVisibility(View.GONE);
+            }
+        }
+
+        @Override
+        public void onClick(View v) {
+            if (mGalleryItem == null) {
+                return;
+            }
+            // 折叠的格子先展开
+            if (!mGalleryItem.getDuplicates().isEmpty()) {
+                ((PhotoAdapter) mPhotoRecyclerView.getAdapter()).expand(getAdapterPosition());
+                return;
+            }
+            // 打开全屏查看
+            startActivity(PhotoDetailActivity.newIntent(getActivity(), mGalleryItem.getImageSource()));
+        }
     }
 
     private class PhotoAdapter extends RecyclerView.Adapter<PhotoHolder> {
         private List<GalleryItem> mGalleryItemList;
+        private int mLastBoundPosition = 0; // 用于判断滚动方向
 
         public PhotoAdapter(List<GalleryItem> galleryItemList) {
             mGalleryItemList = galleryItemList;
@@ -168,15 +468,54 @@ public class PhotoGalleryFragment extends Fragment {
 
         @Override
         public void onBindViewHolder(@NonNull @NotNull PhotoGalleryFragment.PhotoHolder photoHolder, int position) {
-            GalleryItem galleryItem = mGalleryItemList.get(position);
             Drawable drawable = getResources().getDrawable(R.drawable.bill_up_close);
             photoHolder.bindDrawable(drawable);
-            mThumbnailDownloader.queueThumbnail(photoHolder, galleryItem.getImageSource());
+            if (position >= mGalleryItemList.size()) {
+                // 复用的格子可能还在等之前的图片
+                photoHolder.bindPlaceholder();
+                getThumbnailDownloader().queueThumbnail(photoHolder, null);
+                return;
+            }
+            GalleryItem galleryItem = mGalleryItemList.get(position);
+            photoHolder.bindGalleryItem(galleryItem);
+            getThumbnailDownloader().queueThumbnail(photoHolder, galleryItem.getImageSource());
+            prefetch(position);
+        }
+
+        /**
+         * 新绑定的格子在可见范围的边缘，沿滚动方向预取之后的格子，带宽差时预取得少
+         */
+        private void prefetch(int position) {
+            int direction = position >= mLastBoundPosition ? 1 : -1;
+            mLastBoundPosition = position;
+            int prefetchDepth = ThroughputController.get().getPrefetchDepth();
+            for (int i = 1; i <= prefetchDepth; i++) {
+                int prefetchPosition = position + direction * i;
+                if (prefetchPosition < 0 || prefetchPosition >= mGalleryItemList.size()) {
+                    break;
+                }
+                getThumbnailDownloader().prefetchThumbnail(mGalleryItemList.get(prefetchPosition).getImageSource());
+            }
         }
 
         @Override
         public int getItemCount() {
-            return mGalleryItemList.size();
+            return mGalleryItemList.size() + mPlaceholderCount;
+        }
+
+        /**
+         * 把折叠在 position 处的近似重复图片插入到它后面
+         */
+        public void expand(int position) {
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            GalleryItem galleryItem = mGalleryItemList.get(position);
+            List<GalleryItem> duplicates = galleryItem.getDuplicates();
+            galleryItem.setDuplicates(new ArrayList<GalleryItem>());
+            mGalleryItemList.addAll(position + 1, duplicates);
+            notifyItemChanged(position);
+            notifyItemRangeInserted(position + 1, duplicates.size());
         }
     }
 
@@ -0,0 +1,111 @@
+package com.example.photogallery;
+
+import android.os.Process;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 图片加载流水线中的一个阶段：固定数量的工作线程加一个有界队列
+ * 队列满时 offer() 立即失败，调用者暂存请求，等 CapacityListener 通知有空位后再提交，
+ * 由此向上游传递背压，任何线程都不会因为下游忙而阻塞
+ */
+public class PipelineStage {
+    private final ThreadPoolExecutor mExecutor;
+    private final ArrayBlockingQueue<Runnable> mQueue;
+    private volatile CapacityListener mCapacityListener;
+
+    /**
+     * 队列空出位置时回调，回调发生在工作线程中
+     */
+    public interface CapacityListener {
+        void onCapacityAvailable(PipelineStage stage);
+    }
+
+    /**
+     * @param name           线程名前缀
+     * @param threadCount    工作线程数
+     * @param queueCapacity  等待队列的容量
+     * @param threadPriority 工作线程的优先级，取值见 android.os.Process
+     */
+    public PipelineStage(final String name, int threadCount, int queueCapacity, final int threadPriority) {
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS, mQueue,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(threadPriority);
+                                runnable.run();
+                            }
+                        }, name + "-" + mCount.incrementAndGet());
+                    }
+                }) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable task) {
+                super.beforeExecute(thread, task);
+                // 任务开始执行前已经从队列中取出，此时队列中至少有一个空位
+                CapacityListener listener = mCapacityListener;
+                if (listener != null) {
+                    listener.onCapacityAvailable(PipelineStage.this);
+                }
+            }
+        };
+        // 线程预先启动，任务可以直接放进队列
+        mExecutor.prestartAllCoreThreads();
+    }
+
+    /**
+     * 提交任务，队列已满时立即返回 false
+     */
+    public boolean offer(Runnable task) {
+        return !mExecutor.isShutdown() && mQueue.offer(task);
+    }
+
+    public void setCapacityListener(CapacityListener listener) {
+        mCapacityListener = listener;
+    }
+
+    /**
+     * 调整工作线程数，减少时多余的线程在空闲后退出
+     */
+    public void setThreadCount(int threadCount) {
+        // 任何时刻都要保证 core <= max
+        if (threadCount > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(threadCount);
+            mExecutor.setCorePoolSize(threadCount);
+        } else {
+            mExecutor.setCorePoolSize(threadCount);
+            mExecutor.setMaximumPoolSize(threadCount);
+        }
+        mExecutor.prestartAllCoreThreads();
+    }
+
+    /**
+     * @return 队列中剩余的空位数
+     */
+    public int remainingCapacity() {
+        return mQueue.remainingCapacity();
+    }
+
+    /**
+     * 丢弃还未开始执行的任务
+     */
+    public void clear() {
+        mQueue.clear();
+    }
+
+    /**
+     * 丢弃等待中的任务并中断正在执行的任务
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
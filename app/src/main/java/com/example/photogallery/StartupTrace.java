@@ -0,0 +1,70 @@
+package com.example.photogallery;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 启动过程的跟踪：用 systrace 的 section 标出各阶段，并记录首帧、首张缩略图等里程碑的时间
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    public static final String FIRST_FRAME = "first_frame";
+    public static final String FIRST_FETCH = "first_fetch";
+    public static final String FIRST_THUMBNAIL = "first_thumbnail";
+
+    private static volatile long sOrigin = getProcessStartTime();
+    private static final ConcurrentHashMap<String, Long> sMilestones = new ConcurrentHashMap<>();
+
+    /**
+     * 开始一个 section，必须在同一线程中调用 endSection()
+     */
+    public static void beginSection(String sectionName) {
+        Trace.beginSection(sectionName);
+    }
+
+    public static void endSection() {
+        Trace.endSection();
+    }
+
+    /**
+     * 记录里程碑，同一里程碑只记录第一次
+     *
+     * @param milestone 里程碑的名字
+     */
+    public static void mark(String milestone) {
+        long elapsed = SystemClock.elapsedRealtime() - sOrigin;
+        if (sMilestones.putIfAbsent(milestone, elapsed) == null) {
+            Log.i(TAG, milestone + ": " + elapsed + "ms");
+        }
+    }
+
+    /**
+     * @param milestone 里程碑的名字
+     * @return 里程碑距启动的毫秒数，还未到达时返回 -1
+     */
+    public static long getMilestone(String milestone) {
+        Long elapsed = sMilestones.get(milestone);
+        return elapsed == null ? -1 : elapsed;
+    }
+
+    /**
+     * 以当前时间为起点重新记录，供同一进程内多次测量启动时间
+     */
+    public static void reset() {
+        sMilestones.clear();
+        sOrigin = SystemClock.elapsedRealtime();
+    }
+
+    private static long getProcessStartTime() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Process.getStartElapsedRealtime();
+        }
+        // 更早的系统以本类被加载的时间近似
+        return SystemClock.elapsedRealtime();
+    }
+}
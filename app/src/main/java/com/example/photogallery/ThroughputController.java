@@ -0,0 +1,169 @@
+package com.example.photogallery;
+
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 根据 ThumbnailDownloader 下载缩略图时测得的吞吐量和延迟，调整下载并发数（AIMD：加性增、乘性减），
+ * 并在带宽较差时降低预取数量和解码尺寸
+ */
+public class ThroughputController {
+    private static final String TAG = "ThroughputController";
+    private static final int MIN_CONCURRENCY = 1;
+    private static final int MAX_CONCURRENCY = 8;
+    private static final int INITIAL_CONCURRENCY = 4;
+    private static final double EWMA_WEIGHT = 0.2; // 新样本在滑动平均中的权重
+    private static final double LATENCY_SPIKE_FACTOR = 2.0; // 延迟超过基线的这么多倍视为拥塞
+    private static final double MIN_LATENCY_DRIFT = 1.01; // 延迟基线缓慢上调，适应网络切换
+    private static final long POOR_BANDWIDTH = 64 * 1024; // 单个请求低于该吞吐量（字节/秒）视为带宽差
+    private static final int PREFETCH_DEPTH = 10;
+    private static final int POOR_PREFETCH_DEPTH = 3;
+    private static final float POOR_DECODE_SCALE = 0.5f;
+
+    private static ThroughputController sThroughputController;
+
+    private double mBandwidthEstimate = -1; // 字节/秒
+    private double mLatencyEstimate = -1; // 毫秒
+    private double mMinLatency = Double.MAX_VALUE;
+    private int mConcurrency = INITIAL_CONCURRENCY;
+    private int mSuccessesSinceChange = 0;
+    private boolean mPoorBandwidth = false;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 决策变化时回调，回调发生在网络线程中
+     */
+    public interface Listener {
+        void onDecisionsChanged(ThroughputController controller);
+    }
+
+    public static synchronized ThroughputController get() {
+        if (sThroughputController == null) {
+            sThroughputController = new ThroughputController();
+        }
+        return sThroughputController;
+    }
+
+    private ThroughputController() {
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * 报告一个成功的请求
+     *
+     * @param bytes      响应体的字节数
+     * @param latencyMs  从发出请求到收到响应头的时间
+     * @param durationMs 整个请求的时间
+     */
+    public void onRequestComplete(long bytes, long latencyMs, long durationMs) {
+        boolean changed;
+        synchronized (this) {
+            int oldConcurrency = mConcurrency;
+            boolean oldPoorBandwidth = mPoorBandwidth;
+
+            double bandwidth = bytes * 1000.0 / Math.max(1, durationMs);
+            mBandwidthEstimate = mBandwidthEstimate < 0 ? bandwidth
+                    : mBandwidthEstimate * (1 - EWMA_WEIGHT) + bandwidth * EWMA_WEIGHT;
+            mLatencyEstimate = mLatencyEstimate < 0 ? latencyMs
+                    : mLatencyEstimate * (1 - EWMA_WEIGHT) + latencyMs * EWMA_WEIGHT;
+            mMinLatency = Math.min(mMinLatency * MIN_LATENCY_DRIFT, latencyMs);
+
+            if (latencyMs > Math.max(1, mMinLatency) * LATENCY_SPIKE_FACTOR
+                    && mLatencyEstimate > mMinLatency * LATENCY_SPIKE_FACTOR) {
+                // 请求开始排队：乘性减
+                decrease();
+            } else if (++mSuccessesSinceChange >= mConcurrency) {
+                // 一轮请求都顺利完成：加性增
+                mConcurrency = Math.min(MAX_CONCURRENCY, mConcurrency + 1);
+                mSuccessesSinceChange = 0;
+            }
+            // 小于 4 KB 的响应（JSON 等）测不准带宽，不参与判断
+            if (bytes >= 4096) {
+                mPoorBandwidth = mBandwidthEstimate < POOR_BANDWIDTH;
+            }
+
+            changed = oldConcurrency != mConcurrency || oldPoorBandwidth != mPoorBandwidth;
+        }
+        if (changed) {
+            notifyListeners();
+        }
+    }
+
+    /**
+     * 报告一个失败的请求（超时、连接中断、限流等）
+     */
+    public void onRequestFailed() {
+        boolean changed;
+        synchronized (this) {
+            int oldConcurrency = mConcurrency;
+            decrease();
+            changed = oldConcurrency != mConcurrency;
+        }
+        if (changed) {
+            notifyListeners();
+        }
+    }
+
+    private void decrease() {
+        mConcurrency = Math.max(MIN_CONCURRENCY, mConcurrency / 2);
+        mSuccessesSinceChange = 0;
+    }
+
+    private void notifyListeners() {
+        Log.i(TAG, "Decisions changed: " + this);
+        for (Listener listener : mListeners) {
+            listener.onDecisionsChanged(this);
+        }
+    }
+
+    /**
+     * @return 缩略图下载的并发数
+     */
+    public synchronized int getConcurrency() {
+        return mConcurrency;
+    }
+
+    /**
+     * @return 沿滚动方向预取缩略图的格子数
+     */
+    public synchronized int getPrefetchDepth() {
+        return mPoorBandwidth ? POOR_PREFETCH_DEPTH : PREFETCH_DEPTH;
+    }
+
+    /**
+     * @return 缩略图解码尺寸的缩放比例
+     */
+    public synchronized float getDecodeScale() {
+        return mPoorBandwidth ? POOR_DECODE_SCALE : 1f;
+    }
+
+    public synchronized double getBandwidthEstimate() {
+        return mBandwidthEstimate;
+    }
+
+    public synchronized double getLatencyEstimate() {
+        return mLatencyEstimate;
+    }
+
+    @Override
+    public synchronized @NotNull String toString() {
+        return "ThroughputController{" +
+                "mConcurrency=" + mConcurrency +
+                ", mPoorBandwidth=" + mPoorBandwidth +
+                ", mBandwidthEstimate=" + (long) mBandwidthEstimate +
+                ", mLatencyEstimate=" + (long) mLatencyEstimate +
+                ", mMinLatency=" + (long) mMinLatency +
+                '}';
+    }
+}
@@ -1,14 +1,19 @@
 package com.example.photogallery;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.LruCache;
+import android.view.Choreographer;
 
 import androidx.annotation.NonNull;
 
@@ -20,57 +25,115 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 下载图片的工具类，处理在 UI 线程后后台线程间的交互
  *
  * @param <T>
  */
-public class ThumbnailDownloader<T> extends HandlerThread {
+public class ThumbnailDownloader<T> extends HandlerThread implements ComponentCallbacks2 {
     private static final String TAG = "ThumbnailDownloader";
     private static final int MESSAGE_DOWNLOAD = 0;
+    private static final int MESSAGE_PREFETCH = 1;
+    private static final int MESSAGE_RETRY = 2;
     private Boolean mHasQuit = false;
-    private Handler mRequestHandler; // UI -> Background
+    private volatile Handler mRequestHandler; // UI -> Background，start() 返回时已经创建
     private Handler mResponseHandler; // Background -> UI
     private ConcurrentHashMap<T, String> mRequestMap = new ConcurrentHashMap<>(); // 线程安全 map
+    private final Set<String> mPrefetchingUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); // 正在预取的 URL
+    private final Set<T> mWaitingTargets = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>()); // 队列满或等待预取，暂时没有派发的请求
     private ThumbnailDownloadListener<T> mThumbnailDownloadListener;
+    private PerceptualHashListener mPerceptualHashListener;
 
-    /// 内存 LRU 缓存
-    private static final int mMemoryCacheSize = 512 * 1024 * 1024; // 缓存大小：512 MB
-    /// LruCache 可以在 UI 线程中初始化
-    private final LruCache<String, Bitmap> mBitmapLruCache = new LruCache<String, Bitmap>(mMemoryCacheSize) {
+    /// 流水线：下载（I/O 密集）-> 解码（CPU 密集）-> 写缓存（低优先级）
+    private static final int FETCH_QUEUE_CAPACITY = 32;
+    private static final int DECODE_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int DECODE_QUEUE_CAPACITY = 16;
+    private static final int CACHE_WRITE_QUEUE_CAPACITY = 16;
+    /// 下载并发数由 ThroughputController 根据测得的吞吐量和延迟调整
+    private final PipelineStage mFetchStage = new PipelineStage(TAG + "-fetch",
+            ThroughputController.get().getConcurrency(), FETCH_QUEUE_CAPACITY, Process.THREAD_PRIORITY_BACKGROUND);
+    private final ThroughputController.Listener mThroughputListener = new ThroughputController.Listener() {
         @Override
-        protected int sizeOf(String key, Bitmap value) {
-            return value.getByteCount();
+        public void onDecisionsChanged(ThroughputController controller) {
+            mFetchStage.setThreadCount(controller.getConcurrency());
+        }
+    };
+    private final PipelineStage mDecodeStage = new PipelineStage(TAG + "-decode",
+            DECODE_THREAD_COUNT, DECODE_QUEUE_CAPACITY, Process.THREAD_PRIORITY_BACKGROUND);
+    private final PipelineStage mCacheWriteStage = new PipelineStage(TAG + "-cache-write",
+            1, CACHE_WRITE_QUEUE_CAPACITY, Process.THREAD_PRIORITY_LOWEST);
+    /// 下载或解码队列空出位置时，重新派发等待中的请求
+    private final PipelineStage.CapacityListener mCapacityListener = new PipelineStage.CapacityListener() {
+        @Override
+        public void onCapacityAvailable(PipelineStage stage) {
+            scheduleRetry();
         }
+    };
 
-        /**
-         * 该函数在缓存不存在时被调用，创建需求的对象并缓存，最后返回给 get()
-         *
-         * @param url URL
-         * @return Bitmap 对象
-         */
+    /// 按帧批量交付：每帧最多花 FRAME_BUDGET_NS 更新 UI，剩下的留到下一帧
+    private static final long FRAME_BUDGET_NS = TimeUnit.MILLISECONDS.toNanos(4);
+    private boolean mFrameBatchedDelivery = false;
+    private final Choreographer mChoreographer; // UI 线程的 Choreographer
+    private final ConcurrentLinkedQueue<Response> mPendingResponses = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean(false);
+    private final Choreographer.FrameCallback mDeliverFrameCallback = new Choreographer.FrameCallback() {
         @Override
-        protected Bitmap create(String url) {
-            try {
-                byte[] bitmapBytes = new NasaFetcher().getUrlBytes(url);
-                final Bitmap bitmap = BitmapFactory.decodeByteArray(bitmapBytes,
-                        0,
-                        bitmapBytes.length);
-                Log.i(TAG, "Bitmap created");
-                return bitmap;
-            } catch (IOException ioException) {
-                Log.e(TAG, "Error downloading image", ioException);
-            }
-            return null;
+        public void doFrame(long frameTimeNanos) {
+            deliverPendingResponses();
         }
     };
 
+    /**
+     * 等待交给 UI 线程的下载结果
+     */
+    private class Response {
+        final T mTarget;
+        final String mUrl;
+        final Bitmap mBitmap;
+
+        Response(T target, String url, Bitmap bitmap) {
+            mTarget = target;
+            mUrl = url;
+            mBitmap = bitmap;
+        }
+    }
+
+    /// 内存 LRU 缓存，大小为可用内存的 1/8，内存紧张时按 onTrimMemory 的级别缩减
+    private static final int MEMORY_CACHE_SIZE = (int) (Runtime.getRuntime().maxMemory() / 8);
+    /// LruCache 可以在 UI 线程中初始化
+    private final LruCache<String, Bitmap> mBitmapLruCache = new LruCache<String, Bitmap>(MEMORY_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    /// 内存紧张时降级解码：RGB_565 并加倍采样率，压力消失 DEGRADED_DURATION_MS 后自动恢复
+    private static final long DEGRADED_DURATION_MS = 30 * 1000;
+    private volatile long mDegradedUntil = 0;
+    private final Context mContext;
+    private final int mThumbnailSize; // 缩略图解码的目标边长（像素）
+
+    /// 统计数据，供诊断和压力测试使用
+    private final AtomicInteger mMemoryHitCount = new AtomicInteger();
+    private final AtomicInteger mDiskHitCount = new AtomicInteger();
+    private final AtomicInteger mNetworkFetchCount = new AtomicInteger();
+    private final AtomicLong mNetworkBytes = new AtomicLong();
+
     private final BitmapDiskCache mBitmapDiskCache;
 
-    class BitmapDiskCache {
+    static class BitmapDiskCache {
         private final Context mContext;
 
         BitmapDiskCache(Context context) {
@@ -145,6 +208,61 @@ public class ThumbnailDownloader<T> extends HandlerThread {
             return null;
         }
 
+        /**
+         * 将下载得到的原始字节保存到本地，先写临时文件再改名，避免读到写了一半的文件
+         *
+         * @param bytes    图片的字节
+         * @param filename 文件名
+         */
+        public void saveBytes(byte[] bytes, String filename) {
+            String partFilename = "part-" + filename;
+            try {
+                FileOutputStream out = mContext.openFileOutput(partFilename, Context.MODE_PRIVATE);
+                try {
+                    out.write(bytes);
+                } finally {
+                    out.close();
+                }
+                if (!mContext.getFileStreamPath(partFilename).renameTo(mContext.getFileStreamPath(filename))) {
+                    Log.e(TAG, "Failed to rename file to: " + filename);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save file to: " + filename);
+            }
+        }
+
+        /**
+         * @param filename 图片文件名
+         * @return 本地是否有该图片的缓存
+         */
+        public boolean contains(String filename) {
+            return mContext.getFileStreamPath(filename).exists();
+        }
+
+        /**
+         * 通过 filename 从本地载入缩小采样后的 Bitmap，使其尺寸不小于 reqWidth x reqHeight
+         *
+         * @param filename  图片文件名
+         * @param reqWidth  需要的宽度
+         * @param reqHeight 需要的高度
+         * @return Bitmap 对象，缓存不存在时返回 null
+         */
+        public Bitmap loadBitmap(String filename, int reqWidth, int reqHeight) {
+            File file = mContext.getFileStreamPath(filename);
+            if (!file.exists()) {
+                return null;
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+
+            options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                    reqWidth, reqHeight);
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+
         /**
          * 为 url 生成唯一的识别符
          *
@@ -160,6 +278,23 @@ public class ThumbnailDownloader<T> extends HandlerThread {
         }
     }
 
+    /**
+     * 计算不小于需求尺寸的最大 2 的幂次采样率
+     *
+     * @param width     原图宽度
+     * @param height    原图高度
+     * @param reqWidth  需要的宽度
+     * @param reqHeight 需要的高度
+     * @return inSampleSize
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
 
     public interface ThumbnailDownloadListener<T> {
         void onThumbnailDownloaded(T target, Bitmap thumbnail);
@@ -169,27 +304,147 @@ public class ThumbnailDownloader<T> extends HandlerThread {
         mThumbnailDownloadListener = listener;
     }
 
+    /**
+     * 在解码线程中回调，报告图片的感知哈希
+     */
+    public interface PerceptualHashListener {
+        void onPerceptualHash(String url, long hash);
+    }
+
+    public void setPerceptualHashListener(PerceptualHashListener listener) {
+        mPerceptualHashListener = listener;
+    }
+
+    /**
+     * 开启后，下载结果不再逐个 post 到 UI 线程，而是收集起来每帧统一更新
+     *
+     * @param frameBatchedDelivery 是否按帧批量交付
+     */
+    public void setFrameBatchedDelivery(boolean frameBatchedDelivery) {
+        mFrameBatchedDelivery = frameBatchedDelivery;
+    }
+
+    /**
+     * @return 内存缓存命中的次数
+     */
+    public int getMemoryHitCount() {
+        return mMemoryHitCount.get();
+    }
+
+    /**
+     * @return 外存缓存命中的次数
+     */
+    public int getDiskHitCount() {
+        return mDiskHitCount.get();
+    }
+
+    /**
+     * @return 成功从网络下载的图片数
+     */
+    public int getNetworkFetchCount() {
+        return mNetworkFetchCount.get();
+    }
+
+    /**
+     * @return 从网络下载的总字节数
+     */
+    public long getNetworkBytes() {
+        return mNetworkBytes.get();
+    }
+
+    /**
+     * 需要在 UI 线程中创建
+     */
     public ThumbnailDownloader(Handler responseHandler, Context context) {
         super(TAG);
         mResponseHandler = responseHandler;
+        mChoreographer = Choreographer.getInstance();
         mBitmapDiskCache = new BitmapDiskCache(context);
+        mContext = context.getApplicationContext();
+        mThumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+        mContext.registerComponentCallbacks(this);
+        ThroughputController.get().addListener(mThroughputListener);
+        mFetchStage.setCapacityListener(mCapacityListener);
+        mDecodeStage.setCapacityListener(mCapacityListener);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // 即将被杀死或前台内存严重不足：清空内存缓存并降级解码
+            mBitmapLruCache.evictAll();
+            degradeDecode();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            mBitmapLruCache.trimToSize(mBitmapLruCache.maxSize() / 4);
+            degradeDecode();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // 每次离开应用都会收到，不代表内存紧张，只缩减缓存
+            mBitmapLruCache.trimToSize(mBitmapLruCache.maxSize() / 2);
+        } else if (level == TRIM_MEMORY_RUNNING_MODERATE) {
+            mBitmapLruCache.trimToSize(mBitmapLruCache.maxSize() / 2);
+        }
+        Log.i(TAG, "onTrimMemory(" + level + "), memory cache size: " + mBitmapLruCache.size());
+    }
+
+    @Override
+    public void onLowMemory() {
+        mBitmapLruCache.evictAll();
+        degradeDecode();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+
+    private void degradeDecode() {
+        mDegradedUntil = SystemClock.uptimeMillis() + DEGRADED_DURATION_MS;
+    }
+
+    /**
+     * @return 当前是否处于降级解码模式
+     */
+    private boolean isDegraded() {
+        return SystemClock.uptimeMillis() < mDegradedUntil;
+    }
+
+    /**
+     * @return bitmap 是否是在降级解码模式下解码的
+     */
+    private static boolean isDegraded(Bitmap bitmap) {
+        return bitmap.getConfig() == Bitmap.Config.RGB_565;
     }
 
     @Override
     public boolean quit() {
         mHasQuit = true;
+        mContext.unregisterComponentCallbacks(this);
+        ThroughputController.get().removeListener(mThroughputListener);
+        mBitmapLruCache.evictAll();
+        mFetchStage.shutdown();
+        mDecodeStage.shutdown();
+        mCacheWriteStage.shutdown();
         return super.quit();
     }
 
+    /**
+     * 启动线程并创建请求 Handler，返回后就可以调用 queueThumbnail()
+     * onLooperPrepared() 在后台线程中执行，可能晚于第一次 queueThumbnail()，因此不在那里创建
+     */
     @Override
-    protected void onLooperPrepared() {
-        mRequestHandler = new Handler() {
+    public void start() {
+        super.start();
+        // getLooper() 会等待后台线程的 looper 准备好
+        mRequestHandler = new Handler(getLooper()) {
             @Override
             public void handleMessage(@NonNull Message msg) {
                 if (msg.what == MESSAGE_DOWNLOAD) {
                     T target = (T) msg.obj;
                     Log.i(TAG, "Got a request for URL: " + mRequestMap.get(target));
                     handleRequest(target);
+                } else if (msg.what == MESSAGE_PREFETCH) {
+                    handlePrefetch((String) msg.obj);
+                } else if (msg.what == MESSAGE_RETRY) {
+                    handleRetry();
                 }
             }
         };
@@ -198,6 +453,8 @@ public class ThumbnailDownloader<T> extends HandlerThread {
     public void queueThumbnail(T target, String url) {
         Log.i(TAG, "Got a URL: " + url);
 
+        // 新的请求会重新派发，不再需要等待中的旧请求
+        mWaitingTargets.remove(target);
         if (url == null) {
             mRequestMap.remove(target);
         } else {
@@ -206,13 +463,88 @@ public class ThumbnailDownloader<T> extends HandlerThread {
         }
     }
 
+    /**
+     * 预取即将滚动到的图片：只下载到磁盘缓存，不解码，真正绑定时从磁盘缓存解码
+     *
+     * @param url 图片的 URL
+     */
+    public void prefetchThumbnail(String url) {
+        if (url != null) {
+            mRequestHandler.obtainMessage(MESSAGE_PREFETCH, url).sendToTarget();
+        }
+    }
+
     public void clearQueue() {
         mRequestHandler.removeMessages(MESSAGE_DOWNLOAD);
+        mRequestHandler.removeMessages(MESSAGE_PREFETCH);
+        mRequestHandler.removeMessages(MESSAGE_RETRY);
+        mFetchStage.clear();
+        mDecodeStage.clear();
         mRequestMap.clear();
+        mPrefetchingUrls.clear();
+        mWaitingTargets.clear();
+    }
+
+    /**
+     * 让后台线程重新派发等待中的请求，已经安排过的不重复安排
+     * 可以在任何线程中调用
+     */
+    private void scheduleRetry() {
+        Handler requestHandler = mRequestHandler;
+        if (mHasQuit || requestHandler == null || mWaitingTargets.isEmpty()
+                || requestHandler.hasMessages(MESSAGE_RETRY)) {
+            return;
+        }
+        requestHandler.sendEmptyMessage(MESSAGE_RETRY);
+    }
+
+    /**
+     * 在后台重新派发等待中的请求，仍然无法派发的会重新进入等待
+     */
+    private void handleRetry() {
+        for (T target : new ArrayList<>(mWaitingTargets)) {
+            if (mWaitingTargets.remove(target)) {
+                handleRequest(target);
+            }
+        }
+    }
+
+    /**
+     * 在后台派发预取：已缓存或正在预取的跳过；预取最多占用一半的下载队列，满了就放弃，不和可见的格子争抢
+     */
+    private void handlePrefetch(final String url) {
+        final String filename = mBitmapDiskCache.generateFilename(url);
+        if (mBitmapLruCache.get(url) != null || mBitmapDiskCache.contains(filename)
+                || mFetchStage.remainingCapacity() <= FETCH_QUEUE_CAPACITY / 2
+                || !mPrefetchingUrls.add(url)) {
+            return;
+        }
+
+        boolean accepted = mFetchStage.offer(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] bitmapBytes = new NasaFetcher().getUrlBytes(url, ThroughputController.get());
+                    mNetworkFetchCount.incrementAndGet();
+                    mNetworkBytes.addAndGet(bitmapBytes.length);
+                    mBitmapDiskCache.saveBytes(bitmapBytes, filename);
+                } catch (IOException ioException) {
+                    Log.e(TAG, "Error prefetching image", ioException);
+                } finally {
+                    mPrefetchingUrls.remove(url);
+                    // 可能有可见的格子在等这次预取
+                    scheduleRetry();
+                }
+            }
+        });
+        if (!accepted) {
+            mPrefetchingUrls.remove(url);
+        }
     }
 
     /**
-     * 在后台进行请求处理
+     * 在后台派发请求：缓存命中的交给解码阶段，否则交给下载阶段
+     * 派发线程从不阻塞，队列满时放进等待集合，队列空出位置后重新派发
      *
      * @param target
      */
@@ -223,11 +555,200 @@ public class ThumbnailDownloader<T> extends HandlerThread {
             return;
         }
 
-        // 使用内存 LRU 缓存
-//        final Bitmap bitmap = mBitmapLruCache.get(url);
+        // 内存缓存命中，直接交付
+        Bitmap cachedBitmap = mBitmapLruCache.get(url);
+        if (cachedBitmap != null && isDegraded(cachedBitmap) && !isDegraded()) {
+            // 压力已经消失，降级解码的图片从磁盘缓存重新解码
+            mBitmapLruCache.remove(url);
+            cachedBitmap = null;
+        }
+        if (cachedBitmap != null) {
+            mMemoryHitCount.incrementAndGet();
+            deliver(target, url, cachedBitmap);
+            return;
+        }
 
-        // 使用外存缓存
-        final Bitmap bitmap = mBitmapDiskCache.get(url);
+        final String filename = mBitmapDiskCache.generateFilename(url);
+        if (mPrefetchingUrls.contains(url)) {
+            // 正在预取，等它写入磁盘缓存，不重复下载
+            mWaitingTargets.add(target);
+            // 放进等待集合之前预取可能已经完成，那时的通知会错过
+            if (!mPrefetchingUrls.contains(url)) {
+                scheduleRetry();
+            }
+            return;
+        }
+
+        boolean accepted;
+        boolean diskHit = mBitmapDiskCache.contains(filename);
+        if (diskHit) {
+            // 缓存命中最多占用一半的解码队列，给刚下载好的图片留出位置
+            accepted = mDecodeStage.remainingCapacity() > DECODE_QUEUE_CAPACITY / 2
+                    && mDecodeStage.offer(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isCurrent(target, url)) {
+                                return;
+                            }
+                            Log.i(TAG, "Use Disk Cache");
+                            mDiskHitCount.incrementAndGet();
+                            Bitmap bitmap = decodeThumbnail(mContext.getFileStreamPath(filename));
+                            hashThumbnail(url, bitmap);
+                            deliver(target, url, bitmap);
+                        }
+                    });
+        } else {
+            accepted = mFetchStage.offer(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(target, url, filename);
+                }
+            });
+        }
+
+        if (!accepted) {
+            waitForCapacity(target, diskHit);
+        }
+    }
+
+    /**
+     * 暂存无法派发的请求，队列空出位置时由 mCapacityListener 重新派发
+     *
+     * @param diskHit 请求是否等待解码阶段，否则等待下载阶段
+     */
+    private void waitForCapacity(T target, boolean diskHit) {
+        mWaitingTargets.add(target);
+        // 放进等待集合之前队列可能已经空出，那时的通知会错过
+        boolean hasCapacity = diskHit
+                ? mDecodeStage.remainingCapacity() > DECODE_QUEUE_CAPACITY / 2
+                : mFetchStage.remainingCapacity() > 0;
+        if (hasCapacity) {
+            scheduleRetry();
+        }
+    }
+
+    /**
+     * 下载阶段：下载图片后把写缓存和解码交给后面的阶段
+     * 解码队列满时不等待，把字节写入磁盘缓存后释放，等解码阶段有空位时从磁盘解码
+     */
+    private void fetch(final T target, final String url, final String filename) {
+        if (!isCurrent(target, url)) {
+            return;
+        }
+
+        final byte[] bitmapBytes;
+        try {
+            bitmapBytes = new NasaFetcher().getUrlBytes(url, ThroughputController.get());
+            mNetworkFetchCount.incrementAndGet();
+            mNetworkBytes.addAndGet(bitmapBytes.length);
+        } catch (IOException ioException) {
+            Log.e(TAG, "Error downloading image", ioException);
+            deliver(target, url, null);
+            return;
+        }
+
+        boolean decoding = mDecodeStage.offer(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrent(target, url)) {
+                    return;
+                }
+                Bitmap bitmap = decodeThumbnail(bitmapBytes);
+                Log.i(TAG, "Bitmap created");
+                hashThumbnail(url, bitmap);
+                deliver(target, url, bitmap);
+            }
+        });
+        if (!decoding) {
+            // 解码积压时不占住下载线程，字节写入磁盘缓存，之后作为缓存命中重新派发
+            Log.w(TAG, "Decode queue full, spill to disk: " + filename);
+            mBitmapDiskCache.saveBytes(bitmapBytes, filename);
+            if (isCurrent(target, url)) {
+                waitForCapacity(target, true);
+            }
+            return;
+        }
+
+        // 直接保存原始字节，不再重新编码；写缓存阶段忙不过来时放弃这次缓存
+        boolean cached = mCacheWriteStage.offer(new Runnable() {
+            @Override
+            public void run() {
+                mBitmapDiskCache.saveBytes(bitmapBytes, filename);
+            }
+        });
+        if (!cached) {
+            Log.w(TAG, "Cache write queue full, skip caching: " + filename);
+        }
+    }
+
+    /**
+     * 按缩略图尺寸采样解码字节
+     */
+    private Bitmap decodeThumbnail(byte[] bytes) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        applyDecodeMode(options);
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+    /**
+     * 按缩略图尺寸采样解码文件
+     */
+    private Bitmap decodeThumbnail(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        applyDecodeMode(options);
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    /**
+     * 顺带在解码线程中计算感知哈希，缩略图已经很小，计算代价可以忽略
+     */
+    private void hashThumbnail(String url, Bitmap bitmap) {
+        if (bitmap != null && mPerceptualHashListener != null) {
+            mPerceptualHashListener.onPerceptualHash(url, PerceptualHash.dHash(bitmap));
+        }
+    }
+
+    /**
+     * 根据原图尺寸、当前内存状况和带宽设置解码参数
+     */
+    private void applyDecodeMode(BitmapFactory.Options options) {
+        // 带宽差时解码得更小，先把已下载的图片显示出来
+        int targetSize = Math.max(1, (int) (mThumbnailSize * ThroughputController.get().getDecodeScale()));
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                targetSize, targetSize);
+        if (isDegraded()) {
+            options.inSampleSize *= 2;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        options.inJustDecodeBounds = false;
+    }
+
+    /**
+     * @return target 是否仍在等待 url 对应的图片
+     */
+    private boolean isCurrent(T target, String url) {
+        return !mHasQuit && url.equals(mRequestMap.get(target));
+    }
+
+    /**
+     * 将结果交给 UI 线程
+     */
+    private void deliver(final T target, final String url, final Bitmap bitmap) {
+        if (bitmap != null) {
+            mBitmapLruCache.put(url, bitmap);
+        }
+
+        if (mFrameBatchedDelivery) {
+            mPendingResponses.add(new Response(target, url, bitmap));
+            if (mFrameScheduled.compareAndSet(false, true)) {
+                mChoreographer.postFrameCallback(mDeliverFrameCallback);
+            }
+            return;
+        }
 
         mResponseHandler.post(new Runnable() {
             @Override
@@ -241,4 +762,32 @@ public class ThumbnailDownloader<T> extends HandlerThread {
             }
         });
     }
+
+    /**
+     * 在 UI 线程中交付积攒的结果，超出本帧的时间预算后把剩下的推迟到下一帧
+     */
+    private void deliverPendingResponses() {
+        long start = System.nanoTime();
+        mFrameScheduled.set(false);
+
+        Response response;
+        while ((response = mPendingResponses.poll()) != null) {
+            if (mHasQuit) {
+                mPendingResponses.clear();
+                return;
+            }
+            if (mRequestMap.get(response.mTarget) == response.mUrl) {
+                mRequestMap.remove(response.mTarget);
+                mThumbnailDownloadListener.onThumbnailDownloaded(response.mTarget, response.mBitmap);
+            }
+
+            if (System.nanoTime() - start > FRAME_BUDGET_NS) {
+                break;
+            }
+        }
+
+        if (!mPendingResponses.isEmpty() && mFrameScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(mDeliverFrameCallback);
+        }
+    }
 }
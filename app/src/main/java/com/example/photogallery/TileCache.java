@@ -0,0 +1,70 @@
+package com.example.photogallery;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 缓存已解码的图块，按字节数进行 LRU 淘汰，内存紧张时按 onTrimMemory 的级别缩减
+ */
+public class TileCache implements ComponentCallbacks2 {
+    private final LruCache<String, Bitmap> mLruCache;
+
+    /**
+     * @param maxBytes 缓存的最大字节数
+     */
+    public TileCache(int maxBytes) {
+        mLruCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * 生成图块的键，同一位置在不同采样率下是不同的图块
+     *
+     * @param sampleSize 采样率
+     * @param column     图块所在列
+     * @param row        图块所在行
+     * @return 图块的键
+     */
+    public static String keyOf(int sampleSize, int column, int row) {
+        return sampleSize + "/" + column + "/" + row;
+    }
+
+    public Bitmap get(String key) {
+        return mLruCache.get(key);
+    }
+
+    public void put(String key, Bitmap tile) {
+        mLruCache.put(key, tile);
+    }
+
+    public void evictAll() {
+        mLruCache.evictAll();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // 图块随时可以重新解码，不可见或内存严重不足时全部丢弃
+            mLruCache.evictAll();
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            mLruCache.trimToSize(mLruCache.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mLruCache.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.photogallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 在后台线程中使用 BitmapRegionDecoder 按需解码图块，解码结果存入 TileCache
+ */
+public class TileDecoder extends HandlerThread {
+    private static final String TAG = "TileDecoder";
+    private static final int MESSAGE_OPEN = 0;
+    private static final int MESSAGE_DECODE = 1;
+    private Boolean mHasQuit = false;
+    private volatile Handler mRequestHandler; // UI -> Background，start() 返回时已经创建
+    private Handler mResponseHandler; // Background -> UI
+    private ConcurrentHashMap<String, TileRequest> mRequestMap = new ConcurrentHashMap<>(); // 等待解码的图块
+    private final Set<String> mFailedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); // 解码失败的图块，换图片源之前不再请求
+    private TileDecodeListener mTileDecodeListener;
+    private final TileCache mTileCache;
+    private BitmapRegionDecoder mRegionDecoder; // 只在后台线程访问
+
+    private static class TileRequest {
+        final Rect mRegion;
+        final int mSampleSize;
+
+        TileRequest(Rect region, int sampleSize) {
+            mRegion = region;
+            mSampleSize = sampleSize;
+        }
+    }
+
+    public interface TileDecodeListener {
+        /**
+         * 图片源打开完成
+         *
+         * @param width  原图宽度
+         * @param height 原图高度
+         */
+        void onSourceReady(int width, int height);
+
+        /**
+         * 一个图块已解码并放入缓存
+         */
+        void onTileDecoded(String key);
+    }
+
+    public void setTileDecodeListener(TileDecodeListener listener) {
+        mTileDecodeListener = listener;
+    }
+
+    public TileDecoder(Handler responseHandler, TileCache tileCache) {
+        super(TAG);
+        mResponseHandler = responseHandler;
+        mTileCache = tileCache;
+    }
+
+    /**
+     * 放弃等待中的请求，释放 BitmapRegionDecoder 后退出
+     */
+    @Override
+    public boolean quit() {
+        mHasQuit = true;
+        clearQueue();
+        mRequestHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRegionDecoder != null) {
+                    mRegionDecoder.recycle();
+                    mRegionDecoder = null;
+                }
+            }
+        });
+        return super.quitSafely();
+    }
+
+    /**
+     * 启动线程并创建请求 Handler，返回后就可以调用 setSource() 和 queueTile()
+     * onLooperPrepared() 在后台线程中执行，可能晚于第一次请求，因此不在那里创建
+     */
+    @Override
+    public void start() {
+        super.start();
+        // getLooper() 会等待后台线程的 looper 准备好
+        mRequestHandler = new Handler(getLooper()) {
+            @Override
+            public void handleMessage(@NonNull Message msg) {
+                if (msg.what == MESSAGE_OPEN) {
+                    handleOpen((File) msg.obj);
+                } else if (msg.what == MESSAGE_DECODE) {
+                    handleDecode((String) msg.obj);
+                }
+            }
+        };
+    }
+
+    /**
+     * 打开需要分块解码的图片文件
+     *
+     * @param file 原图文件
+     */
+    public void setSource(File file) {
+        mRequestHandler.obtainMessage(MESSAGE_OPEN, file).sendToTarget();
+    }
+
+    /**
+     * 请求解码一个图块，已在队列中的图块和解码失败过的图块不会重复请求
+     *
+     * @param key        图块的键
+     * @param region     图块在原图中的区域
+     * @param sampleSize 采样率
+     */
+    public void queueTile(String key, Rect region, int sampleSize) {
+        if (mFailedKeys.contains(key)) {
+            return;
+        }
+        if (mRequestMap.putIfAbsent(key, new TileRequest(region, sampleSize)) == null) {
+            mRequestHandler.obtainMessage(MESSAGE_DECODE, key).sendToTarget();
+        }
+    }
+
+    /**
+     * 放弃不再可见的图块请求
+     *
+     * @param visibleKeys 当前可见的图块的键
+     */
+    public void retainTiles(Collection<String> visibleKeys) {
+        mRequestMap.keySet().retainAll(visibleKeys);
+    }
+
+    public void clearQueue() {
+        mRequestHandler.removeMessages(MESSAGE_DECODE);
+        mRequestMap.clear();
+    }
+
+    private void handleOpen(File file) {
+        if (mRegionDecoder != null) {
+            mRegionDecoder.recycle();
+            mRegionDecoder = null;
+        }
+        // 新的图片源，之前失败的图块可以重新尝试
+        mFailedKeys.clear();
+        try {
+            mRegionDecoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+        } catch (IOException ioException) {
+            Log.e(TAG, "Failed to open region decoder: " + file, ioException);
+            return;
+        }
+
+        final int width = mRegionDecoder.getWidth();
+        final int height = mRegionDecoder.getHeight();
+        mResponseHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mHasQuit) {
+                    return;
+                }
+                mTileDecodeListener.onSourceReady(width, height);
+            }
+        });
+    }
+
+    /**
+     * 在后台解码图块
+     *
+     * @param key 图块的键
+     */
+    private void handleDecode(final String key) {
+        TileRequest request = mRequestMap.get(key);
+        // 请求已被放弃或图片源还未打开
+        if (request == null || mRegionDecoder == null) {
+            mRequestMap.remove(key);
+            return;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = request.mSampleSize;
+        // JPG 没有透明通道，RGB_565 只需一半的内存
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap tile;
+        try {
+            tile = mRegionDecoder.decodeRegion(request.mRegion, options);
+        } catch (OutOfMemoryError outOfMemoryError) {
+            Log.e(TAG, "Out of memory decoding tile: " + key, outOfMemoryError);
+            tile = null;
+        }
+        mRequestMap.remove(key);
+        if (tile == null) {
+            // 记下失败的图块，否则每一帧都会重新请求，变成解码死循环
+            Log.e(TAG, "Failed to decode tile: " + key);
+            mFailedKeys.add(key);
+            return;
+        }
+        mTileCache.put(key, tile);
+
+        mResponseHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mHasQuit) {
+                    return;
+                }
+                mTileDecodeListener.onTileDecoded(key);
+            }
+        });
+    }
+}
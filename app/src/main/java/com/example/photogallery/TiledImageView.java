@@ -0,0 +1,231 @@
+package com.example.photogallery;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分块显示大图的 View，支持拖动和缩放
+ * 底层先绘制低分辨率的 Bitmap，再在其上绘制当前缩放级别下解码出的图块
+ */
+public class TiledImageView extends View {
+    private static final int TILE_SIZE = 256; // 图块解码后的边长（像素）
+    private static final float MAX_SCALE = 4f; // 最大放大倍数（相对原图）
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mDstRect = new RectF();
+    private final List<String> mVisibleKeys = new ArrayList<>();
+    private final ScaleGestureDetector mScaleGestureDetector;
+    private final GestureDetector mGestureDetector;
+
+    private Bitmap mBaseBitmap; // 低分辨率底图
+    private TileCache mTileCache;
+    private TileDecoder mTileDecoder;
+    private int mImageWidth;
+    private int mImageHeight;
+    private float mScale; // 屏幕像素 / 原图像素
+    private float mMinScale;
+    private float mOffsetX; // 原图左上角在 View 中的位置
+    private float mOffsetY;
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mScaleGestureDetector = new ScaleGestureDetector(context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        zoomBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                        return true;
+                    }
+                });
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                mOffsetX -= distanceX;
+                mOffsetY -= distanceY;
+                clampOffset();
+                invalidate();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                // 双击在适应屏幕和放大之间切换
+                float target = mScale > mMinScale * 1.5f ? mMinScale : mMinScale * 3;
+                zoomBy(target / mScale, e.getX(), e.getY());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 绑定图块的缓存和解码器
+     */
+    public void setTileSource(TileCache tileCache, TileDecoder tileDecoder) {
+        mTileCache = tileCache;
+        mTileDecoder = tileDecoder;
+    }
+
+    /**
+     * 设置低分辨率底图，在原图尺寸未知时按底图尺寸显示
+     */
+    public void setBaseBitmap(Bitmap baseBitmap) {
+        mBaseBitmap = baseBitmap;
+        if (mImageWidth == 0 && baseBitmap != null) {
+            setImageSize(baseBitmap.getWidth(), baseBitmap.getHeight());
+        }
+        invalidate();
+    }
+
+    /**
+     * 设置原图的尺寸，并重置为适应屏幕的缩放
+     */
+    public void setImageSize(int width, int height) {
+        mImageWidth = width;
+        mImageHeight = height;
+        resetScale();
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        resetScale();
+    }
+
+    private void resetScale() {
+        if (mImageWidth == 0 || getWidth() == 0) {
+            return;
+        }
+        mMinScale = Math.min((float) getWidth() / mImageWidth, (float) getHeight() / mImageHeight);
+        mScale = mMinScale;
+        clampOffset();
+    }
+
+    private void zoomBy(float factor, float focusX, float focusY) {
+        float scale = Math.max(mMinScale, Math.min(mScale * factor, MAX_SCALE));
+        factor = scale / mScale;
+        // 保持焦点下的图像位置不变
+        mOffsetX = focusX - (focusX - mOffsetX) * factor;
+        mOffsetY = focusY - (focusY - mOffsetY) * factor;
+        mScale = scale;
+        clampOffset();
+        invalidate();
+    }
+
+    /**
+     * 限制拖动范围，图片小于 View 时居中
+     */
+    private void clampOffset() {
+        float scaledWidth = mImageWidth * mScale;
+        float scaledHeight = mImageHeight * mScale;
+        if (scaledWidth <= getWidth()) {
+            mOffsetX = (getWidth() - scaledWidth) / 2;
+        } else {
+            mOffsetX = Math.max(getWidth() - scaledWidth, Math.min(mOffsetX, 0));
+        }
+        if (scaledHeight <= getHeight()) {
+            mOffsetY = (getHeight() - scaledHeight) / 2;
+        } else {
+            mOffsetY = Math.max(getHeight() - scaledHeight, Math.min(mOffsetY, 0));
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        boolean handled = mScaleGestureDetector.onTouchEvent(event);
+        handled = mGestureDetector.onTouchEvent(event) || handled;
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mImageWidth == 0) {
+            return;
+        }
+
+        if (mBaseBitmap != null) {
+            mDstRect.set(mOffsetX, mOffsetY, mOffsetX + mImageWidth * mScale, mOffsetY + mImageHeight * mScale);
+            canvas.drawBitmap(mBaseBitmap, null, mDstRect, mPaint);
+        }
+
+        if (mTileDecoder == null) {
+            return;
+        }
+
+        int sampleSize = calculateSampleSize(mScale);
+        // 底图的分辨率已经足够时不需要图块
+        if (mBaseBitmap != null && mBaseBitmap.getWidth() >= mImageWidth / sampleSize) {
+            mVisibleKeys.clear();
+            mTileDecoder.retainTiles(mVisibleKeys);
+            return;
+        }
+        drawTiles(canvas, sampleSize);
+    }
+
+    /**
+     * 绘制可见区域内已缓存的图块，并请求解码缺失的图块
+     */
+    private void drawTiles(Canvas canvas, int sampleSize) {
+        // 可见区域在原图中的坐标
+        int left = (int) Math.max(0, -mOffsetX / mScale);
+        int top = (int) Math.max(0, -mOffsetY / mScale);
+        int right = (int) Math.min(mImageWidth, (getWidth() - mOffsetX) / mScale);
+        int bottom = (int) Math.min(mImageHeight, (getHeight() - mOffsetY) / mScale);
+
+        int tileSpan = TILE_SIZE * sampleSize; // 图块在原图中的边长
+        mVisibleKeys.clear();
+        for (int row = top / tileSpan; row * tileSpan < bottom; row++) {
+            for (int column = left / tileSpan; column * tileSpan < right; column++) {
+                String key = TileCache.keyOf(sampleSize, column, row);
+                mVisibleKeys.add(key);
+
+                Rect region = new Rect(column * tileSpan, row * tileSpan,
+                        Math.min((column + 1) * tileSpan, mImageWidth),
+                        Math.min((row + 1) * tileSpan, mImageHeight));
+                Bitmap tile = mTileCache.get(key);
+                if (tile == null) {
+                    mTileDecoder.queueTile(key, region, sampleSize);
+                    continue;
+                }
+
+                mDstRect.set(mOffsetX + region.left * mScale, mOffsetY + region.top * mScale,
+                        mOffsetX + region.right * mScale, mOffsetY + region.bottom * mScale);
+                canvas.drawBitmap(tile, null, mDstRect, mPaint);
+            }
+        }
+        mTileDecoder.retainTiles(mVisibleKeys);
+    }
+
+    /**
+     * 计算当前缩放下的采样率：不低于屏幕分辨率的最大 2 的幂次
+     */
+    private static int calculateSampleSize(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 <= 1 / scale) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}